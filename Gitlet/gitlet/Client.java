@@ -0,0 +1,79 @@
+package gitlet;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/** A thin client for the Gitlet daemon.  It passes its arguments to the
+ *  daemon serving the repository in the current directory and copies the
+ *  daemon's output to its own, so that a command costs only the start-up
+ *  of this class.  With no daemon running, it runs the command itself.
+ */
+public class Client {
+
+    /** Path of the daemon's socket, relative to the working directory. */
+    static final File SOCKET = new File(".gitlet", "daemon.sock");
+
+    /** Usage: java gitlet.Client ARGS, where ARGS are as for
+     *  gitlet.Main. */
+    public static void main(String... args) throws IOException {
+        if (!send(args, System.out)) {
+            Main.main(args);
+        }
+        System.out.flush();
+    }
+
+    /** Return true iff a daemon is listening on SOCKET. */
+    static boolean listening() {
+        try (SocketChannel channel = connect()) {
+            return channel != null;
+        } catch (IOException excp) {
+            return false;
+        }
+    }
+
+    /** Return a channel connected to the daemon, or null if no daemon is
+     *  listening. */
+    private static SocketChannel connect() throws IOException {
+        if (!SOCKET.exists()) {
+            return null;
+        }
+        SocketChannel channel =
+            SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(SOCKET.toPath()));
+            return channel;
+        } catch (IOException excp) {
+            channel.close();
+            return null;
+        }
+    }
+
+    /** Have the daemon run the command ARGS, copying its output to OUT.
+     *  Returns false, having done nothing, if no daemon is listening. */
+    static boolean send(String[] args, OutputStream out) throws IOException {
+        SocketChannel channel = connect();
+        if (channel == null) {
+            return false;
+        }
+        try (channel) {
+            DataOutputStream request =
+                new DataOutputStream(Channels.newOutputStream(channel));
+            request.writeInt(args.length);
+            for (String arg : args) {
+                request.writeUTF(arg);
+            }
+            request.flush();
+            channel.shutdownOutput();
+            InputStream reply = Channels.newInputStream(channel);
+            reply.transferTo(out);
+        }
+        return true;
+    }
+}
@@ -2,15 +2,29 @@ package gitlet;
 
 
 
-import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.Formatter;
 
 public class Commit implements Serializable {
+    /** Serialization version, fixed so that stored commits stay readable
+     *  as methods are added. */
+    private static final long serialVersionUID = 4055495960023965396L;
+    /** Version of the commit encoding, and its first byte. */
+    private static final byte VERSION = 1;
+    /** Number of ids a commit holds: its own, its tree's and its
+     *  parents'. */
+    private static final int IDS = 4;
     /** Message of this commit. */
 
     private String _message;
@@ -20,89 +34,190 @@ public class Commit implements Serializable {
     private String _parent2;
     /** Optional second of this commit.*/
     private Date _time;
-    /** The names of the files this commit is tracking,
-     * mapped to the hash of their contents stored in BLOBS. */
+    /** The names of the files tracked by a commit written by an older
+     * version, mapped to the hash of their contents.  Null in commits
+     * that refer to a tree. */
     private TreeMap<String, String> _tracks;
+    /** Id of the tree holding the snapshot of this commit. */
+    private String _tree;
+    /** The names of the files this commit is tracking, mapped to the
+     * hash of their contents, read from the tree when first needed. */
+    private transient SortedMap<String, String> _files;
+    /** Id of this commit: the id it was loaded from, or the hash of its
+     *  encoding once first asked for.  Null until then.  A commit whose
+     *  id is known may no longer change. */
+    private transient String _id;
 
     public Commit(String message) {
         _message = message;
         _parent = null;
         _parent2 = null;
         _time = new Date(0);
-        _tracks = new TreeMap<>();
+        _tree = Tree.write(new TreeMap<>());
     }
 
-    public Commit(String message, TreeMap<String, String> tracks,
+    public Commit(String message, String tree,
                   String parent, String parent2) {
         _message = message;
-        _tracks = tracks;
+        _tree = tree;
         _parent = parent;
         _parent2 = parent2;
     }
 
-    public static Commit cloneAndUpdate(Commit a, String message, Stage stage) {
-        Commit c = new Commit(message, a._tracks, a.getHash(), null);
-        TreeMap<String, String> tracks = stage.getAdds();
-        for (String f : tracks.keySet()) {
-            if (c._tracks != null) {
-                if (c._tracks.containsKey(f)) {
-                    c._tracks.remove(f, c._tracks.get(f));
-                    c._tracks.put(f, tracks.get(f));
+    /** Return a new commit with message MESSAGE whose parent is A and
+     *  whose files are those of A as changed by STAGE.  Only the staged
+     *  entries are visited, and only the trees along their paths are read
+     *  or written; the working directory is not read. */
+    public static Commit cloneAndUpdate(Commit a, String message,
+                                        Stage stage) throws IOException {
+        Commit c = new Commit(message, null, a.getHash(), null);
+        TreeMap<String, String> changes = new TreeMap<>(stage.getAdds());
+        for (String file : stage.getRms()) {
+            changes.put(file, null);
+        }
+        if (a._tree != null) {
+            c._tree = Tree.update(a._tree, changes);
+        } else {
+            TreeMap<String, String> files = new TreeMap<>(a.getTracks());
+            for (Map.Entry<String, String> e : changes.entrySet()) {
+                if (e.getValue() == null) {
+                    files.remove(e.getKey());
                 } else {
-                    c._tracks.put(f, tracks.get(f));
+                    files.put(e.getKey(), e.getValue());
                 }
             }
-
-            for (String file : stage.getRms()) {
-                c._tracks.remove(file);
-            }
-            for (String file : c._tracks.keySet()) {
-                Utils.writeContents(Utils.join(Repository.CWD, file),
-                        Utils.readContentsAsString(Utils.join
-                                (Repository.BLOBS, c._tracks.get(file))));
-            }
-        }
-
-        ArrayList<String> itemsToRemove = new ArrayList<>();
-
-        for (String file : c._tracks.keySet()) {
-            File f = Utils.join(Repository.CWD, file);
-            if (!f.exists()) {
-                itemsToRemove.add(file);
-            }
-        }
-
-        for (String file : itemsToRemove) {
-            c._tracks.remove(file);
+            c._tree = Tree.write(files);
         }
 
-
-
         c._time = new Date();
         return c;
     }
 
     public void assign2ndParent(String parenthash) {
+        if (_id != null) {
+            throw new IllegalStateException("commit " + _id
+                                            + " cannot be changed");
+        }
         this._parent2 = parenthash;
     }
 
 
 
 
+    /** Store this commit and record it in the message index and commit
+     *  graph.  The commit is stored first, so that neither ever names a
+     *  commit that is missing from the store. */
     public void immortalize() throws IOException {
-        String hash = getHash();
-        File commitFile = Utils.join(Repository.COMMITS, hash);
-        commitFile.createNewFile();
-        Utils.writeObject(commitFile, this);
+        byte[] contents = encode();
+        Repository.objects().put(ObjectStore.COMMIT, contents);
+        Repository.messages().add(getHash(), _message);
+        Repository.cache().put(getHash(), this, footprint());
+        Repository.graph().add(getHash(), _parent, _parent2, getTimestamp());
+    }
+
+    /** Return the commit stored under ID with encoded form CONTENTS.
+     *  Commits written by older versions are serialized Java objects; their
+     *  id is taken to be ID, since they need not serialize to the same
+     *  bytes today. */
+    public static Commit load(String id, byte[] contents) {
+        Commit c;
+        if (contents.length > 0 && contents[0] == VERSION) {
+            c = decode(contents);
+        } else {
+            c = Utils.deserialize(contents, Commit.class);
+        }
+        c._id = id;
+        return c;
     }
 
     public String getHash() {
-        byte[] contents = Utils.serialize(this);
-        return Utils.sha1(contents);
+        if (_id == null) {
+            _id = Utils.sha1(encode());
+        }
+        return _id;
     }
 
-    public TreeMap<String, String> getTracks() {
-        return _tracks;
+    /** Return the encoding of this commit: the version byte, the tree id,
+     *  the number of parents and their ids, the time in milliseconds, and
+     *  the length of the message in UTF-8 followed by the message. */
+    byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.write(PackFile.toBytes(_tree));
+            out.writeByte(_parent == null ? 0 : _parent2 == null ? 1 : 2);
+            if (_parent != null) {
+                out.write(PackFile.toBytes(_parent));
+            }
+            if (_parent2 != null) {
+                out.write(PackFile.toBytes(_parent2));
+            }
+            out.writeLong(_time.getTime());
+            byte[] message = _message.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(message.length);
+            out.write(message);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw new AssertionError(excp);
+        }
+    }
+
+    /** Return the commit whose encoding is CONTENTS. */
+    private static Commit decode(byte[] contents) {
+        try (DataInputStream in = new DataInputStream(
+                 new ByteArrayInputStream(contents))) {
+            byte[] id = new byte[Utils.UID_LENGTH / 2];
+            in.readByte();
+            in.readFully(id);
+            String tree = PackFile.toHex(id);
+            String[] parents = new String[2];
+            int n = in.readUnsignedByte();
+            for (int i = 0; i < n; i += 1) {
+                in.readFully(id);
+                parents[i] = PackFile.toHex(id);
+            }
+            Date time = new Date(in.readLong());
+            byte[] message = new byte[in.readInt()];
+            in.readFully(message);
+            Commit c = new Commit(new String(message, StandardCharsets.UTF_8),
+                                  tree, parents[0], parents[1]);
+            c._time = time;
+            return c;
+        } catch (IOException excp) {
+            throw Utils.error("Corrupt commit.");
+        }
+    }
+
+    /** Return the files this commit tracks, mapped to their blobs.  The
+     *  map may not be changed, since the commit may be shared. */
+    public SortedMap<String, String> getTracks() {
+        if (_files == null) {
+            _files = Collections.unmodifiableSortedMap(
+                _tree != null ? Tree.flatten(_tree)
+                : _tracks == null ? new TreeMap<>() : _tracks);
+            if (_id != null) {
+                Repository.cache().reweigh(_id, this, footprint());
+            }
+        }
+        return _files;
+    }
+
+    /** Return the approximate number of bytes this commit takes in
+     *  memory, including its file map once that has been read. */
+    long footprint() {
+        long result = 2 * ObjectCache.OBJECT_BYTES
+            + ObjectCache.weigh(_message)
+            + IDS * (ObjectCache.weigh("") + Utils.UID_LENGTH);
+        if (_files != null) {
+            for (Map.Entry<String, String> e : _files.entrySet()) {
+                result += ObjectCache.ENTRY_BYTES
+                    + ObjectCache.weigh(e.getKey())
+                    + ObjectCache.weigh(e.getValue());
+            }
+        }
+        return result;
     }
 
     public String getMessage() {
@@ -121,9 +236,20 @@ public class Commit implements Serializable {
 
 
 
+    public long getTimestamp() {
+        return _time.getTime();
+    }
+
     public Formatter getTime() {
         Formatter f = new Formatter();
-        return f.format("%ta %tb %td %tR:%tS %tY %tz",
+        formatTime(f);
+        return f;
+    }
+
+    /** Append the time of this commit, as shown by log, to the destination
+     *  of F. */
+    void formatTime(Formatter f) {
+        f.format("%ta %tb %td %tR:%tS %tY %tz",
                 _time, _time, _time, _time, _time, _time, _time);
     }
 }
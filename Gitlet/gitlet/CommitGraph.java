@@ -0,0 +1,649 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/** A memory-mapped summary of the history of a repository, so that walks
+ *  over the commit graph need not read the commits themselves.  The file
+ *  holds a fan-out table over the sorted commit ids, followed by the ids,
+ *  the positions of each commit's parents, each commit's generation
+ *  number (one more than the largest generation of its parents, or 1 for
+ *  a root) and each commit's timestamp.  Commits are named by their
+ *  position in the file, so following a parent is an array access.
+ *  Commits added since the file was written follow those in the file.
+ *  Flushing the graph appends them to a tail file, a log of fixed-size
+ *  records naming parents by the same positions; only when the tail has
+ *  grown to a fair fraction of the file are the two merged into a new
+ *  file, so most commands that add a commit write only its record.  The
+ *  tail is read into memory when the graph is loaded.
+ */
+class CommitGraph {
+
+    /** Position standing for a missing parent. */
+    static final int NONE = -1;
+
+    /** Mark of commits reachable from the first tip of a merge. */
+    private static final byte ONE = 1;
+    /** Mark of commits reachable from the second tip of a merge. */
+    private static final byte TWO = 2;
+    /** Mark of commits below a common ancestor. */
+    private static final byte STALE = 4;
+    /** Mark of commits already found to be common ancestors. */
+    private static final byte RESULT = 8;
+
+    /** Magic number at the start of the file. */
+    private static final int MAGIC = 0x47434752;
+    /** Version of the file format. */
+    private static final int VERSION = 1;
+    /** Number of bytes in a binary commit id. */
+    private static final int ID_BYTES = Utils.UID_LENGTH / 2;
+    /** Length of the header: magic, version, count. */
+    private static final int HEADER = 12;
+    /** Length of the fan-out table. */
+    private static final int FANOUT = 256 * 4;
+    /** Magic number at the start of the tail. */
+    private static final int TAIL_MAGIC = 0x47435454;
+    /** Length of the tail's header: magic, version, count of the file it
+     *  follows. */
+    private static final int TAIL_HEADER = 12;
+    /** Length of a record in the tail: id, parents, generation, time. */
+    private static final int RECORD = ID_BYTES + 20;
+    /** Number of commits the tail may hold before it is merged into the
+     *  file, however small the file. */
+    private static final int MIN_MERGE = 256;
+    /** The tail is merged into the file once it holds more than one
+     *  commit in MERGE_RATIO of those in the file. */
+    private static final int MERGE_RATIO = 8;
+
+    /** The commit graph stored in FILE, followed by the commits logged in
+     *  TAIL. */
+    CommitGraph(File file, File tail) {
+        _file = file;
+        _tail = tail;
+        _added = new ArrayList<>();
+        _pending = new TreeMap<>();
+        load();
+    }
+
+    /** Return the number of commits in the graph. */
+    int size() {
+        return _count + _added.size();
+    }
+
+    /** Return the position of the commit ID, or NONE if the graph does not
+     *  hold it. */
+    int position(String id) {
+        Integer added = _pending.get(id);
+        if (added != null) {
+            return added;
+        }
+        if (_count == 0 || !ObjectStore.isId(id)) {
+            return NONE;
+        }
+        byte[] key = PackFile.toBytes(id);
+        int bucket = key[0] & 0xff;
+        int lo = bucket == 0 ? 0 : _map.getInt(HEADER + 4 * (bucket - 1));
+        int hi = _map.getInt(HEADER + 4 * bucket) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareAt(mid, key);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return NONE;
+    }
+
+    /** Return the id of the commit at position POS. */
+    String id(int pos) {
+        if (pos >= _count) {
+            return _added.get(pos - _count).id;
+        }
+        byte[] id = new byte[ID_BYTES];
+        _map.get(idPos(pos), id);
+        return PackFile.toHex(id);
+    }
+
+    /** Return the position of the first parent of the commit at POS, or
+     *  NONE. */
+    int parent(int pos) {
+        if (pos >= _count) {
+            return _added.get(pos - _count).parent;
+        }
+        return _map.getInt(parentPos(pos));
+    }
+
+    /** Return the position of the second parent of the commit at POS, or
+     *  NONE. */
+    int parent2(int pos) {
+        if (pos >= _count) {
+            return _added.get(pos - _count).parent2;
+        }
+        return _map.getInt(parentPos(pos) + 4);
+    }
+
+    /** Return the generation number of the commit at POS. */
+    int generation(int pos) {
+        if (pos >= _count) {
+            return _added.get(pos - _count).generation;
+        }
+        return _map.getInt(generationPos(pos));
+    }
+
+    /** Return the timestamp, in milliseconds, of the commit at POS. */
+    long timestamp(int pos) {
+        if (pos >= _count) {
+            return _added.get(pos - _count).time;
+        }
+        return _map.getLong(timestampPos(pos));
+    }
+
+    /** Return the position of the best common ancestor of the commits at
+     *  HEAD and OTHER, or NONE if they share no history.  Of the common
+     *  ancestors that are not ancestors of other common ancestors, this is
+     *  the one fewest parent links away from HEAD. */
+    int mergeBase(int head, int other) {
+        ArrayList<Integer> bases = mergeBases(head, other);
+        if (bases.size() <= 1) {
+            return bases.isEmpty() ? NONE : bases.get(0);
+        }
+        return closest(head, bases);
+    }
+
+    /** Return the positions of the common ancestors of the commits at ONE
+     *  and TWO none of which is an ancestor of another.  Commits are
+     *  visited in decreasing order of generation, painting each with the
+     *  tips it is reachable from; a commit painted by both tips is a
+     *  candidate, and its ancestors are marked stale.  The walk ends once
+     *  only stale commits remain to be visited, which is known from a
+     *  count of the queued entries not marked stale. */
+    private ArrayList<Integer> mergeBases(int one, int two) {
+        byte[] flags = new byte[size()];
+        int[] queued = new int[size()];
+        PriorityQueue<Integer> queue =
+            new PriorityQueue<>((a, b) -> generation(b) - generation(a));
+        ArrayList<Integer> candidates = new ArrayList<>();
+        flags[one] |= ONE;
+        flags[two] |= TWO;
+        queue.add(one);
+        queue.add(two);
+        queued[one] += 1;
+        queued[two] += 1;
+        int live = 2;
+        while (live > 0) {
+            int c = queue.poll();
+            queued[c] -= 1;
+            if ((flags[c] & STALE) == 0) {
+                live -= 1;
+            }
+            int paint = flags[c] & (ONE | TWO | STALE);
+            if (paint == (ONE | TWO)) {
+                if ((flags[c] & RESULT) == 0) {
+                    flags[c] |= RESULT;
+                    candidates.add(c);
+                }
+                paint |= STALE;
+            }
+            for (int p : new int[] {parent(c), parent2(c)}) {
+                if (p != NONE && (flags[p] & paint) != paint) {
+                    if ((flags[p] & STALE) == 0) {
+                        live -= queued[p];
+                    }
+                    flags[p] |= paint;
+                    queue.add(p);
+                    queued[p] += 1;
+                    if ((flags[p] & STALE) == 0) {
+                        live += queued[p];
+                    }
+                }
+            }
+        }
+        ArrayList<Integer> result = new ArrayList<>();
+        for (int c : candidates) {
+            if (candidates.size() > 1 && reachesAny(candidates, c)) {
+                continue;
+            }
+            result.add(c);
+        }
+        return result;
+    }
+
+    /** Return true iff the commit at TARGET is a proper ancestor of one of
+     *  the commits in FROM.  The walk does not descend below TARGET's
+     *  generation, since no commit there can reach it. */
+    private boolean reachesAny(List<Integer> from, int target) {
+        int floor = generation(target);
+        BitSet seen = new BitSet(size());
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        for (int c : from) {
+            if (c != target) {
+                work.push(c);
+            }
+        }
+        while (!work.isEmpty()) {
+            int c = work.pop();
+            if (seen.get(c)) {
+                continue;
+            }
+            seen.set(c);
+            for (int p : new int[] {parent(c), parent2(c)}) {
+                if (p == target) {
+                    return true;
+                } else if (p != NONE && generation(p) > floor) {
+                    work.push(p);
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Return the member of CANDIDATES fewest parent links from the commit
+     *  at HEAD, preferring first parents on ties. */
+    private int closest(int head, List<Integer> candidates) {
+        BitSet wanted = new BitSet(size());
+        for (int c : candidates) {
+            wanted.set(c);
+        }
+        BitSet seen = new BitSet(size());
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        work.add(head);
+        seen.set(head);
+        while (!work.isEmpty()) {
+            int c = work.remove();
+            if (wanted.get(c)) {
+                return c;
+            }
+            for (int p : new int[] {parent(c), parent2(c)}) {
+                if (p != NONE && !seen.get(p)) {
+                    seen.set(p);
+                    work.add(p);
+                }
+            }
+        }
+        return candidates.get(0);
+    }
+
+    /** Add the commit ID with parents PARENT and PARENT2 (either of which
+     *  may be null) and timestamp TIME.  The parents must already be in
+     *  the graph, and the generation of the new commit is found from
+     *  theirs; the file is not changed until the graph is flushed. */
+    void add(String id, String parent, String parent2, long time) {
+        if (position(id) != NONE) {
+            return;
+        }
+        int p1 = parentPosition(parent), p2 = parentPosition(parent2);
+        int gen = 1;
+        for (int p : new int[] {p1, p2}) {
+            if (p != NONE) {
+                gen = Math.max(gen, generation(p) + 1);
+            }
+        }
+        _pending.put(id, size());
+        _added.add(new Added(id, p1, p2, gen, time));
+    }
+
+    /** Write out the commits added since the graph was loaded: append
+     *  them to the tail or, if the tail has grown too long, merge it into
+     *  the file. */
+    void flush() {
+        if (_added.size() == _logged) {
+            return;
+        }
+        if (_added.size() > Math.max(MIN_MERGE, _count / MERGE_RATIO)) {
+            merge();
+            return;
+        }
+        ByteBuffer out = ByteBuffer.allocate(
+            TAIL_HEADER + (_added.size() - _logged) * RECORD);
+        if (_logged == 0) {
+            out.putInt(TAIL_MAGIC).putInt(VERSION).putInt(_count);
+        }
+        for (Added a : _added.subList(_logged, _added.size())) {
+            out.put(PackFile.toBytes(a.id)).putInt(a.parent)
+                .putInt(a.parent2).putInt(a.generation).putLong(a.time);
+        }
+        try (FileOutputStream tail = new FileOutputStream(_tail,
+                                                          _logged > 0)) {
+            tail.write(out.array(), 0, out.position());
+        } catch (IOException excp) {
+            throw Utils.error("Cannot write commit graph: %s",
+                              excp.getMessage());
+        }
+        _logged = _added.size();
+    }
+
+    /** Merge the commits added since the file was written into the file.
+     *  Commits already in the file keep their generations; only their
+     *  positions, and those of their parents, shift to make room. */
+    private void merge() {
+        int total = size();
+        int[] order = new int[total];
+        int[] moved = new int[total];
+        int k = 0, n = 0;
+        for (Map.Entry<String, Integer> pend : _pending.entrySet()) {
+            byte[] key = PackFile.toBytes(pend.getKey());
+            for (; n < _count && compareAt(n, key) < 0; n += 1, k += 1) {
+                order[k] = n;
+                moved[n] = k;
+            }
+            order[k] = pend.getValue();
+            moved[pend.getValue()] = k;
+            k += 1;
+        }
+        for (; n < _count; n += 1, k += 1) {
+            order[k] = n;
+            moved[n] = k;
+        }
+        byte[][] ids = new byte[total][];
+        int[] parents = new int[2 * total];
+        int[] generations = new int[total];
+        long[] times = new long[total];
+        for (int i = 0; i < total; i += 1) {
+            int old = order[i];
+            ids[i] = PackFile.toBytes(id(old));
+            int p1 = parent(old), p2 = parent2(old);
+            parents[2 * i] = p1 == NONE ? NONE : moved[p1];
+            parents[2 * i + 1] = p2 == NONE ? NONE : moved[p2];
+            generations[i] = generation(old);
+            times[i] = timestamp(old);
+        }
+        store(ids, parents, generations, times);
+    }
+
+    /** Return the position of the parent ID, or NONE if ID is null.  It is
+     *  an error for the parent to be missing. */
+    private int parentPosition(String id) {
+        if (id == null) {
+            return NONE;
+        }
+        int pos = position(id);
+        if (pos == NONE) {
+            throw Utils.error("Commit graph is missing commit %s.", id);
+        }
+        return pos;
+    }
+
+    /** Replace the contents of the graph with the commits in COMMITS, whose
+     *  ancestors must all be among them. */
+    void rebuild(List<Commit> commits) {
+        ArrayList<Node> nodes = new ArrayList<>();
+        for (Commit c : commits) {
+            nodes.add(new Node(c.getHash(), c.getParent(), c.getParent2(),
+                               c.getTimestamp()));
+        }
+        write(nodes);
+    }
+
+    /** Write a graph holding NODES to the file and map it. */
+    private void write(ArrayList<Node> nodes) {
+        nodes.sort((a, b) -> a.id.compareTo(b.id));
+        int n = nodes.size();
+        HashMap<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < n; i += 1) {
+            positions.put(nodes.get(i).id, i);
+        }
+        int[] parents = new int[2 * n];
+        for (int i = 0; i < n; i += 1) {
+            parents[2 * i] = positionIn(positions, nodes.get(i).parent);
+            parents[2 * i + 1] = positionIn(positions, nodes.get(i).parent2);
+        }
+        byte[][] ids = new byte[n][];
+        long[] times = new long[n];
+        for (int i = 0; i < n; i += 1) {
+            ids[i] = PackFile.toBytes(nodes.get(i).id);
+            times[i] = nodes.get(i).time;
+        }
+        store(ids, parents, generations(parents, n), times);
+    }
+
+    /** Write a graph of the commits with ids IDS, in sorted order, whose
+     *  parents, generations and timestamps are given by the corresponding
+     *  entries of PARENTS (two per commit), GENERATIONS and TIMES, then
+     *  map it in place of the current contents. */
+    private void store(byte[][] ids, int[] parents, int[] generations,
+                       long[] times) {
+        int n = ids.length;
+        ByteBuffer out = ByteBuffer.allocate(HEADER + FANOUT
+                                             + n * (ID_BYTES + 20));
+        out.putInt(MAGIC).putInt(VERSION).putInt(n);
+        int[] fanout = new int[256];
+        for (byte[] id : ids) {
+            fanout[id[0] & 0xff] += 1;
+        }
+        for (int i = 0, sum = 0; i < 256; i += 1) {
+            sum += fanout[i];
+            out.putInt(sum);
+        }
+        for (byte[] id : ids) {
+            out.put(id);
+        }
+        for (int p : parents) {
+            out.putInt(p);
+        }
+        for (int g : generations) {
+            out.putInt(g);
+        }
+        for (long time : times) {
+            out.putLong(time);
+        }
+        try {
+            File tmp = new File(_file.getPath() + ".tmp");
+            Utils.writeContents(tmp, out.array());
+            Files.move(tmp.toPath(), _file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(_tail.toPath());
+        } catch (IOException excp) {
+            throw Utils.error("Cannot write commit graph: %s",
+                              excp.getMessage());
+        }
+        _added.clear();
+        _pending.clear();
+        load();
+    }
+
+    /** Return the position recorded for ID in POSITIONS, or NONE if ID is
+     *  null.  It is an error for ID to be missing. */
+    private static int positionIn(HashMap<String, Integer> positions,
+                                  String id) {
+        if (id == null) {
+            return NONE;
+        }
+        Integer pos = positions.get(id);
+        if (pos == null) {
+            throw Utils.error("Commit graph is missing commit %s.", id);
+        }
+        return pos;
+    }
+
+    /** Return the generation numbers of N commits whose parents' positions
+     *  are PARENTS[2i] and PARENTS[2i + 1] for commit i. */
+    private static int[] generations(int[] parents, int n) {
+        int[] result = new int[n];
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        for (int i = 0; i < n; i += 1) {
+            work.push(i);
+            while (!work.isEmpty()) {
+                int c = work.peek();
+                if (result[c] != 0) {
+                    work.pop();
+                    continue;
+                }
+                boolean ready = true;
+                int gen = 1;
+                for (int k = 2 * c; k < 2 * c + 2; k += 1) {
+                    int p = parents[k];
+                    if (p == NONE) {
+                        continue;
+                    } else if (result[p] == 0) {
+                        work.push(p);
+                        ready = false;
+                    } else {
+                        gen = Math.max(gen, result[p] + 1);
+                    }
+                }
+                if (ready) {
+                    result[c] = gen;
+                    work.pop();
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Map the file, if there is one, and read the tail. */
+    private void load() {
+        _count = 0;
+        _logged = 0;
+        if (!_file.isFile()) {
+            return;
+        }
+        try (FileChannel ch = FileChannel.open(_file.toPath())) {
+            _map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } catch (IOException excp) {
+            throw Utils.error("Cannot read commit graph: %s",
+                              excp.getMessage());
+        }
+        if (_map.getInt(0) != MAGIC || _map.getInt(4) != VERSION) {
+            throw Utils.error("Unrecognized commit graph format.");
+        }
+        _count = _map.getInt(8);
+        loadTail();
+    }
+
+    /** Read the commits logged in the tail, if it follows the file as it
+     *  now is.  A tail written for an older file, which a merge did not
+     *  get to delete, holds only commits already in the file, and is
+     *  ignored; so is a record cut short by a failed write. */
+    private void loadTail() {
+        if (!_tail.isFile()) {
+            return;
+        }
+        ByteBuffer in = ByteBuffer.wrap(Utils.readContents(_tail));
+        if (in.remaining() < TAIL_HEADER || in.getInt() != TAIL_MAGIC
+            || in.getInt() != VERSION || in.getInt() != _count) {
+            return;
+        }
+        byte[] id = new byte[ID_BYTES];
+        while (in.remaining() >= RECORD) {
+            in.get(id);
+            Added a = new Added(PackFile.toHex(id), in.getInt(),
+                                in.getInt(), in.getInt(), in.getLong());
+            _pending.put(a.id, size());
+            _added.add(a);
+        }
+        _logged = _added.size();
+    }
+
+    /** Compare the id at position N with KEY. */
+    private int compareAt(int n, byte[] key) {
+        int base = idPos(n);
+        for (int i = 0; i < key.length; i += 1) {
+            int c = (_map.get(base + i) & 0xff) - (key[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /** Return the byte position of the Nth id. */
+    private int idPos(int n) {
+        return HEADER + FANOUT + n * ID_BYTES;
+    }
+
+    /** Return the byte position of the Nth pair of parents. */
+    private int parentPos(int n) {
+        return idPos(_count) + n * 8;
+    }
+
+    /** Return the byte position of the Nth generation number. */
+    private int generationPos(int n) {
+        return parentPos(_count) + n * 4;
+    }
+
+    /** Return the byte position of the Nth timestamp. */
+    private int timestampPos(int n) {
+        return generationPos(_count) + n * 8;
+    }
+
+    /** One commit as it is written to the graph. */
+    private static class Node {
+        /** The commit ID with parents PARENT and PARENT2 and timestamp
+         *  TIME. */
+        Node(String id, String parent, String parent2, long time) {
+            this.id = id;
+            this.parent = parent;
+            this.parent2 = parent2;
+            this.time = time;
+        }
+
+        /** Id of the commit. */
+        private final String id;
+        /** Id of the first parent, or null. */
+        private final String parent;
+        /** Id of the second parent, or null. */
+        private final String parent2;
+        /** Timestamp of the commit. */
+        private final long time;
+    }
+
+    /** A commit added since the file was written. */
+    private static class Added {
+        /** The commit ID whose parents are at positions PARENT and PARENT2,
+         *  with generation GENERATION and timestamp TIME. */
+        Added(String id, int parent, int parent2, int generation,
+              long time) {
+            this.id = id;
+            this.parent = parent;
+            this.parent2 = parent2;
+            this.generation = generation;
+            this.time = time;
+        }
+
+        /** Id of the commit. */
+        private final String id;
+        /** Position of the first parent, or NONE. */
+        private final int parent;
+        /** Position of the second parent, or NONE. */
+        private final int parent2;
+        /** Generation number of the commit. */
+        private final int generation;
+        /** Timestamp of the commit. */
+        private final long time;
+    }
+
+    /** The file holding the graph. */
+    private final File _file;
+    /** The file logging commits added since _file was written. */
+    private final File _tail;
+    /** The mapped file, valid when _count > 0. */
+    private MappedByteBuffer _map;
+    /** Number of commits in the file. */
+    private int _count;
+    /** Commits added since the file was written, by position less
+     *  _count. */
+    private final ArrayList<Added> _added;
+    /** Positions of the commits in _added, by id. */
+    private final TreeMap<String, Integer> _pending;
+    /** Number of the commits in _added that are in the tail. */
+    private int _logged;
+}
@@ -0,0 +1,149 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/** A long-lived server that runs Gitlet commands sent to it by Client over
+ *  a Unix-domain socket in the repository.  Commands are run one at a
+ *  time through the same dispatch as Main, with standard output sent back
+ *  to the client.  The object store, commit graph, message index,
+ *  branches and stat cache stay open between commands; before each
+ *  command the daemon checks whether their files have been changed by
+ *  another process, and if so drops them so that they are read afresh.
+ */
+class Daemon {
+
+    /** Files whose contents the daemon keeps in memory. */
+    private static final File[] WATCHED = {
+        Utils.join(Repository.PACKS, "objects.pack"),
+        Utils.join(Repository.PACKS, "objects.idx"),
+        Repository.GRAPH,
+        Repository.GRAPH_TAIL,
+        Repository.MESSAGES,
+        Repository.MESSAGES_INDEX,
+        Repository.PACKED_REFS,
+        Repository.INDEX,
+    };
+
+    /** Run the daemon command ARGS: "daemon" to serve the repository in the
+     *  current directory, or "daemon stop" to stop the daemon serving
+     *  it. */
+    static void command(String[] args) throws IOException {
+        if (args.length == 1) {
+            serve();
+        } else if (args.length == 2 && args[1].equals("stop")) {
+            if (_serving) {
+                _stopping = true;
+                System.out.println("Daemon stopped.");
+            } else if (!Client.send(args, System.out)) {
+                System.out.println("No daemon is running.");
+            }
+        } else {
+            System.out.println("Incorrect operands.");
+        }
+    }
+
+    /** Serve commands until stopped or the repository is removed. */
+    private static void serve() throws IOException {
+        if (_serving || Client.listening()) {
+            System.out.println("A daemon is already running.");
+            return;
+        }
+        Files.deleteIfExists(Client.SOCKET.toPath());
+        try (ServerSocketChannel server =
+                 ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(Client.SOCKET.toPath()));
+            _serving = true;
+            _seen = fingerprint();
+            while (!_stopping && Repository.REPO.isDirectory()) {
+                try (SocketChannel client = server.accept()) {
+                    handle(client);
+                } catch (IOException excp) {
+                    /* The client went away; serve the next one. */
+                    continue;
+                }
+            }
+        } finally {
+            _serving = false;
+            _stopping = false;
+            Files.deleteIfExists(Client.SOCKET.toPath());
+        }
+    }
+
+    /** Run the command sent by CLIENT, sending back its output.  A client
+     *  that sends nothing is only checking that the daemon is up. */
+    private static void handle(SocketChannel client) throws IOException {
+        DataInputStream request =
+            new DataInputStream(Channels.newInputStream(client));
+        int argc;
+        try {
+            argc = request.readInt();
+        } catch (EOFException excp) {
+            return;
+        }
+        String[] args = new String[argc];
+        for (int i = 0; i < argc; i += 1) {
+            args[i] = request.readUTF();
+        }
+        if (!fingerprint().equals(_seen)) {
+            Repository.forget();
+        }
+        PrintStream stdout = System.out;
+        PrintStream reply = new PrintStream(
+            new BufferedOutputStream(Channels.newOutputStream(client)));
+        System.setOut(reply);
+        try {
+            Main.run(args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        } catch (IOException | RuntimeException excp) {
+            System.out.println(excp.getMessage());
+            Repository.forget();
+        } finally {
+            System.setOut(stdout);
+            reply.flush();
+            _seen = fingerprint();
+        }
+    }
+
+    /** Return the size, modification time and file key of each watched
+     *  file, or null for those that do not exist. */
+    private static List<Object> fingerprint() throws IOException {
+        List<Object> result = new ArrayList<>();
+        for (File file : WATCHED) {
+            if (!file.isFile()) {
+                result.add(null);
+                continue;
+            }
+            BasicFileAttributes attrs =
+                Files.readAttributes(file.toPath(),
+                                     BasicFileAttributes.class);
+            result.add(attrs.size());
+            result.add(attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+            result.add(Objects.hashCode(attrs.fileKey()));
+        }
+        return result;
+    }
+
+    /** True iff this process is serving commands. */
+    private static boolean _serving;
+    /** True iff the daemon should stop after the current command. */
+    private static boolean _stopping;
+    /** Fingerprint of the watched files after the last command. */
+    private static List<Object> _seen;
+}
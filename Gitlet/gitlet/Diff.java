@@ -6,19 +6,19 @@ import java.util.List;
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 
 import java.io.IOException;
 import java.nio.file.InvalidPathException;
 
-import static java.lang.Math.max;
-
 /** A comparison of two sequences of strings.  After executing setSequences to
  *  initialize the data, methods allow computing longest common sequences
  *  and differences in the form of edits needed to convert one sequence to the
- *  next.
+ *  next.  Common subsequences are found by Myers's O((N+M)D) algorithm
+ *  on lines interned as integers, in space linear in the lengths of the
+ *  sequences.
  *  @author P. N. Hilfinger */
 public class Diff {
 
@@ -27,8 +27,8 @@ public class Diff {
     public void setSequences(Collection<String> seq1, Collection<String> seq2) {
         _lines1 = new ArrayList<>(seq1);
         _lines2 = new ArrayList<>(seq2);
-        _lls = null;
-        _todo = null;
+        _codes1 = _codes2 = null;
+        _match = null;
     }
 
     /** Set the sequences currently being compared to the contents
@@ -48,8 +48,8 @@ public class Diff {
                  excp) {
             _lines2 = Collections.emptyList();
         }
-        _lls = null;
-        _todo = null;
+        _codes1 = _codes2 = null;
+        _match = null;
     }
 
     /** Return the first of the current sequences. */
@@ -76,76 +76,29 @@ public class Diff {
      *  items, respectively, of the current data sequences. */
     public int lls(int k1, int k2) {
         checkData();
-        if (_lls == null) {
-            _lls = new int[_lines1.size() + 1][_lines2.size() + 1];
-            for (int[] row : _lls) {
-                Arrays.fill(row, -1);
-            }
-        }
         if (k1 == 0 || k2 == 0
             || k1 > _lines1.size() || k2 > _lines2.size()) {
             return 0;
-        } else if (_lls[k1][k2] == -1) {
-            initStack();
-            push(k1, k2, 0);
-            while (!empty()) {
-                pop();
-                if (_llsTop1 == 0 || _llsTop2 == 0) {
-                    _lls[_llsTop1][_llsTop2] = 0;
-                } else if (_lls[_llsTop1][_llsTop2] != -1) {
-                    continue;
-                } else {
-                    switch (_llsState) {
-                    case 0:
-                        if (_lines1.get(_llsTop1 - 1)
-                            .equals(_lines2.get(_llsTop2 - 1))) {
-                            push(_llsTop1, _llsTop2, 4);
-                            push(_llsTop1 - 1, _llsTop2 - 1, 0);
-                        } else {
-                            push(_llsTop1, _llsTop2, 1);
-                        }
-                        continue;
-                    case 1:
-                        push(_llsTop1, _llsTop2, 2);
-                        push(_llsTop1, _llsTop2 - 1, 0);
-                        continue;
-                    case 2:
-                        push(_llsTop1, _llsTop2, 3);
-                        push(_llsTop1 - 1, _llsTop2, 0);
-                        continue;
-                    case 3:
-                        _lls[_llsTop1][_llsTop2]
-                            = max(_lls[_llsTop1][_llsTop2 - 1],
-                                  _lls[_llsTop1 - 1][_llsTop2]);
-                        continue;
-                    case 4:
-                        _lls[_llsTop1][_llsTop2]
-                            = _lls[_llsTop1 - 1][_llsTop2 - 1] + 1;
-                        continue;
-                    default:
-                        assert false;
-                    }
-                }
-            }
+        } else if (k1 == _lines1.size() && k2 == _lines2.size()) {
+            return lls();
         }
-        return _lls[k1][k2];
+        intern();
+        return (k1 + k2 - distance(k1, k2)) / 2;
     }
 
     /** Return the length of the longest common subsequence of the current
      *  data subsequences. */
     public int lls() {
         checkData();
-        return lls(_lines1.size(), _lines2.size());
+        match();
+        return _matched;
     }
 
     /** Return true iff the sequences currently being compared have identical
      *  content. */
     public boolean sequencesEqual() {
         checkData();
-        if (_lines1.size() != _lines2.size()) {
-            return false;
-        }
-        return lls(_lines1.size(), _lines2.size()) == _lines1.size();
+        return _lines1.equals(_lines2);
     }
 
     /** Return an array containing the int values of the items in LIST. */
@@ -166,28 +119,25 @@ public class Diff {
      *  first file (0-based), si2 is the starting position in the second
      *  file, and Li is the length of the subsequence. */
     public int[] commonSubsequence() {
-        ArrayDeque<Integer> resultList = new ArrayDeque<>();
-
-        int k1, k2;
-        k1 = _lines1.size(); k2 = _lines2.size();
-        while (k1 > 0 && k2 > 0) {
-            int ls = lls(k1, k2);
-            if (lls(k1 - 1, k2) == ls) {
-                k1 -= 1;
-            } else if (lls(k1, k2 - 1) == ls) {
-                k2 -= 1;
-            } else {
-                int L;
-                L = 1;
-                while (k1 > L && k2 > L && lls(k1 - L - 1, k2 - L) != ls - L
-                       && lls(k1 - L, k2 - L  - 1) != ls - L) {
-                    L += 1;
-                }
-                resultList.offerFirst(L);
-                resultList.offerFirst(k2 - L);
-                resultList.offerFirst(k1 - L);
-                k1 -= L; k2 -= L;
+        checkData();
+        match();
+        ArrayList<Integer> resultList = new ArrayList<>();
+        int k1 = 0;
+        while (k1 < _match.length) {
+            if (_match[k1] < 0) {
+                k1 += 1;
+                continue;
+            }
+            int L;
+            L = 1;
+            while (k1 + L < _match.length
+                   && _match[k1 + L] == _match[k1] + L) {
+                L += 1;
             }
+            resultList.add(k1);
+            resultList.add(_match[k1]);
+            resultList.add(L);
+            k1 += L;
         }
         return toIntArr(resultList);
     }
@@ -232,45 +182,177 @@ public class Diff {
         }
     }
 
-    /** Initialize work stack for lls. */
-    private void initStack() {
-        _todo = new int[6 * (_lines1.size() +  _lines2.size() + 1)];
-        _todop = 0;
+    /** Replace the lines being compared by integer codes, equal lines
+     *  getting equal codes, if that has not been done. */
+    private void intern() {
+        if (_codes1 != null) {
+            return;
+        }
+        HashMap<String, Integer> codes = new HashMap<>();
+        _codes1 = new int[_lines1.size()];
+        _codes2 = new int[_lines2.size()];
+        for (int i = 0; i < _codes1.length; i += 1) {
+            _codes1[i] = codes.computeIfAbsent(_lines1.get(i),
+                                               k -> codes.size());
+        }
+        for (int i = 0; i < _codes2.length; i += 1) {
+            _codes2[i] = codes.computeIfAbsent(_lines2.get(i),
+                                               k -> codes.size());
+        }
+        int size = 2 * (_codes1.length + _codes2.length) + 3;
+        _forward = new int[size];
+        _backward = new int[size];
     }
 
-    /** Push an item on the work stack for computing lls(I1, I2). STATE
-     *  indicates which inner recursive calls have happened so far for these
-     *  arguments. */
-    private void push(int i1, int i2, int state) {
-        _todo[_todop + 1] = i1;
-        _todo[_todop + 2] = i2;
-        _todo[_todop] = state;
-        _todop += 3;
+    /** Find a longest common subsequence of the current sequences, if that
+     *  has not been done. */
+    private void match() {
+        if (_match != null) {
+            return;
+        }
+        intern();
+        _match = new int[_codes1.length];
+        Arrays.fill(_match, -1);
+        _matched = 0;
+        match(0, _codes1.length, 0, _codes2.length);
     }
 
-    /** Pop an item from the work stack. */
-    private void pop() {
-        _todop -= 3;
-        _llsTop1 = _todo[_todop + 1]; _llsTop2 = _todo[_todop + 2];
-        _llsState = _todo[_todop];
+    /** Record a longest common subsequence of lines [LO1 .. HI1 - 1] of the
+     *  first sequence and [LO2 .. HI2 - 1] of the second in _match.  Common
+     *  leading and trailing lines are matched directly; otherwise the
+     *  middle snake of an optimal edit path divides the problem in two,
+     *  each with at most half as many edits, so that the whole takes
+     *  O((N+M)D) time and O(N+M) space. */
+    private void match(int lo1, int hi1, int lo2, int hi2) {
+        while (lo1 < hi1 && lo2 < hi2 && _codes1[lo1] == _codes2[lo2]) {
+            record(lo1, lo2);
+            lo1 += 1;
+            lo2 += 1;
+        }
+        while (lo1 < hi1 && lo2 < hi2
+               && _codes1[hi1 - 1] == _codes2[hi2 - 1]) {
+            hi1 -= 1;
+            hi2 -= 1;
+            record(hi1, hi2);
+        }
+        if (lo1 == hi1 || lo2 == hi2) {
+            return;
+        }
+        int[] snake = middleSnake(lo1, hi1, lo2, hi2);
+        match(lo1, snake[0], lo2, snake[1]);
+        for (int x = snake[0], y = snake[1]; x < snake[2]; x += 1, y += 1) {
+            record(x, y);
+        }
+        match(snake[2], hi1, snake[3], hi2);
     }
 
-    /** Return true iff the work stack is empty. */
-    private boolean empty() {
-        return _todop <= 0;
+    /** Record that line K1 of the first sequence matches line K2 of the
+     *  second. */
+    private void record(int k1, int k2) {
+        _match[k1] = k2;
+        _matched += 1;
+    }
+
+    /** Return the middle snake of an optimal edit path from lines
+     *  [LO1 .. HI1 - 1] of the first sequence to [LO2 .. HI2 - 1] of the
+     *  second, as {x0, y0, x1, y1}: a run of matching lines from (x0, y0)
+     *  up to (x1, y1), found by searching forward from the start and
+     *  backward from the end until the two searches meet. */
+    private int[] middleSnake(int lo1, int hi1, int lo2, int hi2) {
+        int n = hi1 - lo1, m = hi2 - lo2;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int off = n + m + 1;
+        _forward[off + 1] = 0;
+        _backward[off + 1] = 0;
+        for (int d = 0; d <= (n + m + 1) / 2; d += 1) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = next(_forward, off, k, d);
+                int y = x - k;
+                int x0 = x, y0 = y;
+                while (x < n && y < m
+                       && _codes1[lo1 + x] == _codes2[lo2 + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                _forward[off + k] = x;
+                int r = delta - k;
+                if (odd && r >= -(d - 1) && r <= d - 1
+                    && x + _backward[off + r] >= n) {
+                    return new int[] { lo1 + x0, lo2 + y0,
+                                       lo1 + x, lo2 + y };
+                }
+            }
+            for (int r = -d; r <= d; r += 2) {
+                int x = next(_backward, off, r, d);
+                int y = x - r;
+                int x0 = x, y0 = y;
+                while (x < n && y < m
+                       && _codes1[hi1 - 1 - x] == _codes2[hi2 - 1 - y]) {
+                    x += 1;
+                    y += 1;
+                }
+                _backward[off + r] = x;
+                int k = delta - r;
+                if (!odd && k >= -d && k <= d
+                    && x + _forward[off + k] >= n) {
+                    return new int[] { hi1 - x, hi2 - y,
+                                       hi1 - x0, hi2 - y0 };
+                }
+            }
+        }
+        throw new AssertionError("no middle snake");
+    }
+
+    /** Return the furthest position in the first sequence from which a
+     *  path of D edits can continue along diagonal K, given in V (offset
+     *  by OFF) the furthest positions reached with D - 1 edits. */
+    private static int next(int[] v, int off, int k, int d) {
+        if (k == -d || (k != d && v[off + k - 1] < v[off + k + 1])) {
+            return v[off + k + 1];
+        }
+        return v[off + k - 1] + 1;
+    }
+
+    /** Return the number of insertions and deletions needed to convert
+     *  the first K1 items of the first sequence into the first K2 items of
+     *  the second. */
+    private int distance(int k1, int k2) {
+        int off = k1 + k2 + 1;
+        int[] v = new int[2 * off + 1];
+        for (int d = 0; d <= k1 + k2; d += 1) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = next(v, off, k, d);
+                int y = x - k;
+                while (x < k1 && y < k2 && _codes1[x] == _codes2[y]) {
+                    x += 1;
+                    y += 1;
+                }
+                v[off + k] = x;
+                if (x >= k1 && y >= k2) {
+                    return d;
+                }
+            }
+        }
+        throw new AssertionError("no edit path");
     }
 
     /** The sequences being compared. */
     private List<String> _lines1, _lines2;
 
-    /** The memo table for longest common subsequence.  _lls[a][b] contains the
-     *  length of the longest common sequence of the prefixes of the current
-     *  data sequences of lengths a and b, or -1 if not calculated. */
-    private int[][] _lls;
+    /** The sequences being compared, with each line replaced by an integer
+     *  code that is the same for equal lines, or null if not computed. */
+    private int[] _codes1, _codes2;
+
+    /** The line of the second sequence matched by each line of the first in
+     *  a longest common subsequence, or -1 for unmatched lines; null if not
+     *  computed. */
+    private int[] _match;
+    /** The number of matched lines in _match. */
+    private int _matched;
 
-    /** A stack structure used by lls. */
-    private int[] _todo;
-    /** Structure for the work queue used by lls. */
-    private int _todop, _llsState, _llsTop1, _llsTop2;
+    /** The furthest positions reached along each diagonal by the forward
+     *  and backward searches of middleSnake. */
+    private int[] _forward, _backward;
 
 }
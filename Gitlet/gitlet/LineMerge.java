@@ -0,0 +1,176 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/** A three-way merge of the lines of two versions of a file that descend
+ *  from a common base, in the manner of diff3.  Each version is compared
+ *  with the base by Diff, and the base lines matched in both comparisons
+ *  divide the three files into stable chunks, which all agree, and
+ *  unstable chunks between them.  An unstable chunk changed on only one
+ *  side, or changed identically on both, takes that change; one changed
+ *  differently on both sides is a conflict, and only that chunk is
+ *  enclosed in conflict markers.  Versions that are not text, being
+ *  invalid UTF-8 or holding a NUL byte, are not split into lines; if
+ *  any version is not text, the merge is a conflict between the whole
+ *  of both sides, with their bytes kept exactly.
+ */
+class LineMerge {
+
+    /** Marker opening the head's side of a conflict. */
+    private static final String OURS = "<<<<<<< HEAD\n";
+    /** Marker separating the two sides of a conflict. */
+    private static final String SEPARATOR = "=======\n";
+    /** Marker closing a conflict. */
+    private static final String END = ">>>>>>>\n";
+
+    /** A merge whose result is CONTENTS, conflicted iff CONFLICTED. */
+    private LineMerge(byte[] contents, boolean conflicted) {
+        _contents = contents;
+        _conflicted = conflicted;
+    }
+
+    /** Return the merge of the changes made to BASE by OURS and by
+     *  THEIRS. */
+    static LineMerge merge(byte[] base, byte[] ours, byte[] theirs) {
+        String baseText = text(base), oursText = text(ours),
+            theirsText = text(theirs);
+        if (baseText == null || oursText == null || theirsText == null) {
+            return conflict(ours, theirs);
+        }
+        List<String> b = lines(baseText), o = lines(oursText),
+            t = lines(theirsText);
+        int[] toOurs = matches(b, o), toTheirs = matches(b, t);
+        StringBuilder text = new StringBuilder();
+        boolean conflicted = false;
+        int i = 0, j = 0, k = 0;
+        while (true) {
+            while (i < b.size() && toOurs[i] == j && toTheirs[i] == k) {
+                text.append(b.get(i));
+                i += 1;
+                j += 1;
+                k += 1;
+            }
+            if (i == b.size() && j == o.size() && k == t.size()) {
+                break;
+            }
+            int next = i;
+            while (next < b.size()
+                   && (toOurs[next] < 0 || toTheirs[next] < 0)) {
+                next += 1;
+            }
+            int endOurs = next < b.size() ? toOurs[next] : o.size();
+            int endTheirs = next < b.size() ? toTheirs[next] : t.size();
+            List<String> chunkBase = b.subList(i, next);
+            List<String> chunkOurs = o.subList(j, endOurs);
+            List<String> chunkTheirs = t.subList(k, endTheirs);
+            if (chunkOurs.equals(chunkBase)) {
+                append(text, chunkTheirs);
+            } else if (chunkTheirs.equals(chunkBase)
+                       || chunkTheirs.equals(chunkOurs)) {
+                append(text, chunkOurs);
+            } else {
+                text.append(OURS);
+                append(text, chunkOurs);
+                text.append(SEPARATOR);
+                append(text, chunkTheirs);
+                text.append(END);
+                conflicted = true;
+            }
+            i = next;
+            j = endOurs;
+            k = endTheirs;
+        }
+        return new LineMerge(text.toString().getBytes(UTF_8), conflicted);
+    }
+
+    /** Return a conflict between the whole of OURS and the whole of
+     *  THEIRS. */
+    static LineMerge conflict(byte[] ours, byte[] theirs) {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        contents.writeBytes(OURS.getBytes(UTF_8));
+        contents.writeBytes(ours);
+        contents.writeBytes(SEPARATOR.getBytes(UTF_8));
+        contents.writeBytes(theirs);
+        contents.writeBytes(END.getBytes(UTF_8));
+        return new LineMerge(contents.toByteArray(), true);
+    }
+
+    /** Return the merged contents. */
+    byte[] contents() {
+        return _contents;
+    }
+
+    /** Return true iff the merge has conflicting changes. */
+    boolean conflicted() {
+        return _conflicted;
+    }
+
+    /** Return CONTENTS decoded as UTF-8, or null if they are not text: if
+     *  they are not valid UTF-8 or hold a NUL byte. */
+    private static String text(byte[] contents) {
+        for (byte b : contents) {
+            if (b == 0) {
+                return null;
+            }
+        }
+        try {
+            return UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(contents)).toString();
+        } catch (CharacterCodingException excp) {
+            return null;
+        }
+    }
+
+    /** Return the lines of TEXT, each with its line terminator, if any. */
+    private static List<String> lines(String text) {
+        List<String> result = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start) + 1;
+            if (end == 0) {
+                end = text.length();
+            }
+            result.add(text.substring(start, end));
+            start = end;
+        }
+        return result;
+    }
+
+    /** Return, for each line of BASE, the line of OTHER it is matched with
+     *  in a longest common subsequence of the two, or -1. */
+    private static int[] matches(List<String> base, List<String> other) {
+        Diff diff = new Diff();
+        diff.setSequences(base, other);
+        int[] result = new int[base.size()];
+        Arrays.fill(result, -1);
+        int[] common = diff.commonSubsequence();
+        for (int c = 0; c < common.length; c += 3) {
+            for (int n = 0; n < common[c + 2]; n += 1) {
+                result[common[c] + n] = common[c + 1] + n;
+            }
+        }
+        return result;
+    }
+
+    /** Append LINES to TEXT. */
+    private static void append(StringBuilder text, List<String> lines) {
+        for (String line : lines) {
+            text.append(line);
+        }
+    }
+
+    /** The merged contents. */
+    private final byte[] _contents;
+    /** True iff the merge has conflicting changes. */
+    private final boolean _conflicted;
+}
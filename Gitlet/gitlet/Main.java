@@ -1,7 +1,18 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /** Driver class for Gitlet, the amazing local version-control system!
  *  @author Manish Subramaniam
@@ -9,66 +20,193 @@ import java.io.IOException;
 public class Main {
 
     /** Usage: java gitlet.Main ARGS, where ARGS contains
-     *  <COMMAND> <OPERAND> .... */
+     *  <COMMAND> <OPERAND> ....  Alternatively, java gitlet.Main --batch
+     *  FILE runs each line of FILE (standard input if FILE is "-") as a
+     *  command. */
 
 
     public static void main(String... args) throws IOException {
+        if (args.length == 2 && args[0].equals(BATCH)) {
+            batch(args[1]);
+            return;
+        }
+        try {
+            run(args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        }
+    }
+
+    /** Run the command ARGS, as for main, throwing a GitletException with
+     *  the message to print if the command fails.  Also used by Daemon to
+     *  run the commands sent to it. */
+    static void run(String... args) throws IOException {
+        baseCheck(args);
         Repository r = new Repository();
-        if (baseCheck(args)) {
+        try {
             switch (args[0]) {
             case "init" -> r.init();
             case "add" -> {
-                assert (args.length == 2);
-                r.add(args[1]);
+                if (args.length < 2) {
+                    throw Utils.error("Incorrect operands.");
+                }
+                r.add(Arrays.asList(args).subList(1, args.length));
             }
             case "commit" -> {
                 if (args.length < 2 || args[1].equals("")) {
-                    System.out.println("Please enter a commit message.");
+                    throw Utils.error("Please enter a commit message.");
                 }
                 r.newCommit(args[1]);
             }
             case "checkout" -> checkoutEntry(args, r);
             case "log" -> r.log();
-            case "rm" -> r.rm(args[1]);
+            case "rm" -> {
+                checkOperands(args, 2);
+                r.rm(args[1]);
+            }
             case "global-log" -> r.globalLog();
-            case "find" -> r.find(args[1]);
-            case "branch" -> r.newBranch(args[1]);
+            case "find" -> {
+                checkOperands(args, 2);
+                r.find(args[1]);
+            }
+            case "branch" -> {
+                checkOperands(args, 2);
+                r.newBranch(args[1]);
+            }
             case "status" -> r.status();
-            case "merge" -> r.merge(args[1]);
-            case "rm-branch" -> r.deleteBranch(args[1]);
-            case "reset" -> r.reset(args[1]);
-            default -> System.out.println("No command with that name exists.");
+            case "merge" -> {
+                checkOperands(args, 2);
+                r.merge(args[1]);
+            }
+            case "rm-branch" -> {
+                checkOperands(args, 2);
+                r.deleteBranch(args[1]);
             }
+            case "reset" -> {
+                checkOperands(args, 2);
+                r.reset(args[1]);
+            }
+            case "daemon" -> Daemon.command(args);
+            default -> throw Utils.error("No command with that name exists.");
+            }
+        } finally {
+            r.close();
         }
     }
 
-    public static boolean baseCheck(String[] args) {
+    /** Run each line of the file named NAME, or of the standard input if
+     *  NAME is "-", as a command, all in this process.  A line is split
+     *  into words at blanks, except within single or double quotes; blank
+     *  lines and lines starting with "#" are skipped.  The output of each
+     *  command is followed by a line "### N S", where N is the line number
+     *  of the command and S is 0 if it succeeded and 1 if it failed.  As in
+     *  Daemon, a command that fails other than by reporting an error
+     *  leaves the open repository state to be read afresh. */
+    static void batch(String name) throws IOException {
+        PrintStream stdout = System.out;
+        PrintStream out = new PrintStream(new BufferedOutputStream(
+            new FileOutputStream(FileDescriptor.out), BATCH_BUFFER));
+        System.setOut(out);
+        try (BufferedReader script = new BufferedReader(
+                 name.equals("-") ? new InputStreamReader(System.in)
+                 : new FileReader(name))) {
+            int lineNum = 0;
+            for (String line = script.readLine(); line != null;
+                 line = script.readLine()) {
+                lineNum += 1;
+                String[] args = split(line);
+                if (args.length == 0 || args[0].startsWith("#")) {
+                    continue;
+                }
+                int status = 0;
+                try {
+                    run(args);
+                } catch (GitletException excp) {
+                    System.out.println(excp.getMessage());
+                    status = 1;
+                } catch (IOException | RuntimeException excp) {
+                    System.out.println(excp.getMessage());
+                    Repository.forget();
+                    status = 1;
+                }
+                System.out.printf("### %d %d%n", lineNum, status);
+            }
+        } catch (FileNotFoundException excp) {
+            System.out.println("Cannot read " + name + ".");
+        } finally {
+            out.flush();
+            System.setOut(stdout);
+        }
+    }
+
+    /** Return the words of LINE, split at blanks outside quotes. */
+    static String[] split(String line) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = null;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i += 1) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    word.append(c);
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (word != null) {
+                    words.add(word.toString());
+                    word = null;
+                }
+            } else {
+                if (word == null) {
+                    word = new StringBuilder();
+                }
+                if (c == '"' || c == '\'') {
+                    quote = c;
+                } else {
+                    word.append(c);
+                }
+            }
+        }
+        if (word != null) {
+            words.add(word.toString());
+        }
+        return words.toArray(new String[0]);
+    }
+
+    /** Check that ARGS names a command that can run here. */
+    public static void baseCheck(String[] args) {
         if (args.length == 0) {
-            System.out.println("Please enter a command.");
-            return false;
+            throw Utils.error("Please enter a command.");
         }
         File git = Utils.join(".", ".gitlet");
         if (!args[0].equals("init") && !git.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            return false;
+            throw Utils.error("Not in an initialized Gitlet directory.");
         }
-        return true;
     }
 
     public static void checkoutEntry(String[] args, Repository r)
             throws IOException {
-        if (args[1].equals("--")) {
+        if (args.length == 3 && args[1].equals("--")) {
             r.checkoutFile(args[2]);
-            return;
-        } else if (args.length > 2 && args[2].equals("--")) {
+        } else if (args.length == 4 && args[2].equals("--")) {
             r.checkoutCommit(args[1], args[3]);
-            return;
-        } else if (args.length > 2) {
-            System.out.println("Incorrect operands.");
-            return;
-        } else {
+        } else if (args.length == 2 && !args[1].equals("--")) {
             r.checkoutBranch(args[1]);
-            return;
+        } else {
+            throw Utils.error("Incorrect operands.");
         }
     }
+
+    /** Fail unless the command ARGS has N words, counting its name. */
+    static void checkOperands(String[] args, int n) {
+        if (args.length != n) {
+            throw Utils.error("Incorrect operands.");
+        }
+    }
+
+    /** Option selecting batch mode. */
+    private static final String BATCH = "--batch";
+    /** Size of the output buffer in batch mode. */
+    private static final int BATCH_BUFFER = 1 << 16;
 }
@@ -0,0 +1,245 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/** An index from commit messages to the commits that carry them.  The log
+ *  is an append-only file of records, each the 20-byte commit id, the
+ *  length of the message in UTF-8 and the message.  The index is a table
+ *  of (hash of message, offset of record) pairs sorted by hash, so that
+ *  finding the commits with a given message is a binary search followed
+ *  by reading only the records whose hash matches.  Records appended
+ *  since the index was last written are found by scanning the tail of the
+ *  log, as for PackFile.
+ */
+class MessageIndex {
+
+    /** Magic number at the start of the log. */
+    private static final int LOG_MAGIC = 0x474d5347;
+    /** Magic number at the start of the index. */
+    private static final int INDEX_MAGIC = 0x474d5358;
+    /** Version of the log and index formats. */
+    private static final int VERSION = 1;
+    /** Length of the log header: magic and version. */
+    private static final int LOG_HEADER = 8;
+    /** Number of bytes in a binary commit id. */
+    private static final int ID_BYTES = Utils.UID_LENGTH / 2;
+    /** Length of the index header: magic, version, count, covered. */
+    private static final int INDEX_HEADER = 20;
+    /** Length of an index entry: hash and offset. */
+    private static final int ENTRY = 16;
+
+    /** The index of messages logged in LOG and indexed by INDEX. */
+    MessageIndex(File log, File index) {
+        _logFile = log;
+        _indexFile = index;
+        _tail = new ArrayList<>();
+        loadIndex();
+        scanTail();
+    }
+
+    /** Return the ids of the commits whose message is MESSAGE, in sorted
+     *  order. */
+    List<String> find(String message) {
+        long hash = hash(message);
+        TreeSet<String> result = new TreeSet<>();
+        try (RandomAccessFile log = new RandomAccessFile(_logFile, "r")) {
+            int lo = 0;
+            int hi = _count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (_index.getLong(INDEX_HEADER + mid * ENTRY) < hash) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            for (int i = lo; i < _count
+                     && _index.getLong(INDEX_HEADER + i * ENTRY) == hash;
+                 i += 1) {
+                check(log, _index.getLong(INDEX_HEADER + i * ENTRY + 8),
+                      message, result);
+            }
+            for (long[] e : _tail) {
+                if (e[0] == hash) {
+                    check(log, e[1], message, result);
+                }
+            }
+        } catch (IOException excp) {
+            throw Utils.error("Cannot read message index: %s",
+                              excp.getMessage());
+        }
+        return new ArrayList<>(result);
+    }
+
+    /** Record that commit ID has message MESSAGE. */
+    void add(String id, String message) {
+        try (RandomAccessFile log = new RandomAccessFile(_logFile, "rw")) {
+            if (log.length() == 0) {
+                log.writeInt(LOG_MAGIC);
+                log.writeInt(VERSION);
+            }
+            long offset = log.length();
+            byte[] text = message.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(ID_BYTES + 4
+                                                    + text.length);
+            record.put(PackFile.toBytes(id)).putInt(text.length).put(text);
+            log.seek(offset);
+            log.write(record.array());
+            _tail.add(new long[] { hash(message), offset });
+        } catch (IOException excp) {
+            throw Utils.error("Cannot write message index: %s",
+                              excp.getMessage());
+        }
+    }
+
+    /** Rewrite the index to cover the records added since it was last
+     *  written. */
+    void flush() {
+        if (_tail.isEmpty()) {
+            return;
+        }
+        long[][] entries = new long[_count + _tail.size()][];
+        for (int i = 0; i < _count; i += 1) {
+            entries[i] = new long[] {
+                _index.getLong(INDEX_HEADER + i * ENTRY),
+                _index.getLong(INDEX_HEADER + i * ENTRY + 8),
+            };
+        }
+        for (int i = 0; i < _tail.size(); i += 1) {
+            entries[_count + i] = _tail.get(i);
+        }
+        Arrays.sort(entries, Comparator.<long[]>comparingLong(e -> e[0])
+                    .thenComparingLong(e -> e[1]));
+        ByteBuffer out = ByteBuffer.allocate(INDEX_HEADER
+                                             + entries.length * ENTRY);
+        out.putInt(INDEX_MAGIC).putInt(VERSION).putInt(entries.length)
+            .putLong(_logFile.length());
+        for (long[] e : entries) {
+            out.putLong(e[0]).putLong(e[1]);
+        }
+        try {
+            File tmp = new File(_indexFile.getPath() + ".tmp");
+            Utils.writeContents(tmp, out.array());
+            Files.move(tmp.toPath(), _indexFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw Utils.error("Cannot write message index: %s",
+                              excp.getMessage());
+        }
+        _tail.clear();
+        loadIndex();
+    }
+
+    /** Add ID of the record at OFFSET in LOG to RESULT if its message is
+     *  MESSAGE. */
+    private static void check(RandomAccessFile log, long offset,
+                              String message, TreeSet<String> result)
+            throws IOException {
+        byte[] id = new byte[ID_BYTES];
+        log.seek(offset);
+        log.readFully(id);
+        byte[] text = new byte[log.readInt()];
+        log.readFully(text);
+        if (new String(text, StandardCharsets.UTF_8).equals(message)) {
+            result.add(PackFile.toHex(id));
+        }
+    }
+
+    /** Map the index, if there is one that matches the log. */
+    private void loadIndex() {
+        _count = 0;
+        _covered = LOG_HEADER;
+        if (!_indexFile.isFile()) {
+            return;
+        }
+        try (FileChannel ch = FileChannel.open(_indexFile.toPath())) {
+            MappedByteBuffer index =
+                ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (index.capacity() < INDEX_HEADER
+                || index.getInt(0) != INDEX_MAGIC
+                || index.getInt(4) != VERSION
+                || index.getLong(12) > _logFile.length()) {
+                return;
+            }
+            _index = index;
+            _count = index.getInt(8);
+            _covered = index.getLong(12);
+        } catch (IOException excp) {
+            throw Utils.error("Cannot read message index: %s",
+                              excp.getMessage());
+        }
+    }
+
+    /** Collect the records beyond those covered by the index, discarding
+     *  a record cut short by an interrupted write. */
+    private void scanTail() {
+        if (!_logFile.isFile()) {
+            return;
+        }
+        try (RandomAccessFile log = new RandomAccessFile(_logFile, "rw")) {
+            long size = log.length();
+            if (size < LOG_HEADER) {
+                log.setLength(0);
+                return;
+            }
+            if (log.readInt() != LOG_MAGIC || log.readInt() != VERSION) {
+                throw Utils.error("Unrecognized message index format.");
+            }
+            long pos = _covered;
+            while (pos + ID_BYTES + 4 <= size) {
+                log.seek(pos + ID_BYTES);
+                int length = log.readInt();
+                long end = pos + ID_BYTES + 4 + length;
+                if (length < 0 || end > size) {
+                    break;
+                }
+                byte[] text = new byte[length];
+                log.readFully(text);
+                _tail.add(new long[] {
+                    hash(new String(text, StandardCharsets.UTF_8)), pos });
+                pos = end;
+            }
+            if (pos < size) {
+                log.setLength(Math.max(pos, LOG_HEADER));
+            }
+        } catch (IOException excp) {
+            throw Utils.error("Cannot read message index: %s",
+                              excp.getMessage());
+        }
+    }
+
+    /** Return the hash of MESSAGE used as its key. */
+    private static long hash(String message) {
+        return Long.parseUnsignedLong(
+            Utils.sha1(message.getBytes(StandardCharsets.UTF_8))
+            .substring(0, 16), 16);
+    }
+
+    /** The log of messages. */
+    private final File _logFile;
+    /** The index file. */
+    private final File _indexFile;
+    /** The mapped index, if there is one. */
+    private MappedByteBuffer _index;
+    /** Number of entries in the index. */
+    private int _count;
+    /** Length of the log covered by the index. */
+    private long _covered;
+    /** Hash and offset of each record beyond those covered by the
+     *  index. */
+    private final List<long[]> _tail;
+}
@@ -0,0 +1,132 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A cache of decoded objects, keyed by object id, that holds at most a
+ *  fixed total weight of objects and discards the least recently used
+ *  ones to make room.  The weight of an object is an estimate of the
+ *  memory it takes once decoded, which its owner revises if the object
+ *  grows, as a commit does when its file map is read.  Objects are
+ *  immutable once stored, so an entry never goes stale.  The cache may be
+ *  used from several threads.
+ */
+class ObjectCache {
+
+    /** A cache holding objects of total weight at most CAPACITY. */
+    ObjectCache(long capacity) {
+        _capacity = capacity;
+        _entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /** Return the object cached under ID if it is of class TYPE, or null
+     *  if there is none. */
+    synchronized <T> T get(String id, Class<T> type) {
+        Entry e = _entries.get(id);
+        if (e == null || !type.isInstance(e.value)) {
+            _misses += 1;
+            return null;
+        }
+        _hits += 1;
+        return type.cast(e.value);
+    }
+
+    /** Cache VALUE, of weight WEIGHT, under ID, discarding the least
+     *  recently used entries if the cache is full.  Objects too large to
+     *  leave room for others are not cached. */
+    synchronized void put(String id, Object value, long weight) {
+        if (weight > _capacity / LARGEST_SHARE) {
+            return;
+        }
+        Entry old = _entries.put(id, new Entry(value, weight));
+        _weight += weight - (old == null ? 0 : old.weight);
+        trim();
+    }
+
+    /** Record that VALUE, if it is cached under ID, now has weight WEIGHT,
+     *  discarding it if it has grown too large to keep and otherwise
+     *  discarding the least recently used entries if the cache is
+     *  full. */
+    synchronized void reweigh(String id, Object value, long weight) {
+        Entry old = _entries.get(id);
+        if (old == null || old.value != value) {
+            return;
+        }
+        if (weight > _capacity / LARGEST_SHARE) {
+            _entries.remove(id);
+            _weight -= old.weight;
+            return;
+        }
+        _entries.put(id, new Entry(value, weight));
+        _weight += weight - old.weight;
+        trim();
+    }
+
+    /** Return the approximate number of bytes taken by the string S. */
+    static long weigh(String s) {
+        return STRING_BYTES + s.length();
+    }
+
+    /** Discard the least recently used entries until the cache is within
+     *  its capacity. */
+    private void trim() {
+        Iterator<Entry> lru = _entries.values().iterator();
+        while (_weight > _capacity && lru.hasNext()) {
+            _weight -= lru.next().weight;
+            lru.remove();
+        }
+    }
+
+    /** Return a summary of the use of this cache. */
+    @Override
+    public synchronized String toString() {
+        return String.format("object cache: %d hits, %d misses (%.1f%%), "
+                             + "%d entries, %d of %d bytes",
+                             _hits, _misses, 100.0 * hitRate(),
+                             _entries.size(), _weight, _capacity);
+    }
+
+    /** Return the fraction of lookups that found their object. */
+    synchronized double hitRate() {
+        long lookups = _hits + _misses;
+        return lookups == 0 ? 0.0 : (double) _hits / lookups;
+    }
+
+    /** A cached object and its weight. */
+    private static class Entry {
+        /** An entry for VALUE, of weight WEIGHT. */
+        Entry(Object value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+
+        /** The cached object. */
+        private final Object value;
+        /** Weight of the object. */
+        private final long weight;
+    }
+
+    /** Approximate number of bytes taken by an object apart from its
+     *  fields. */
+    static final long OBJECT_BYTES = 16;
+    /** Approximate number of bytes taken by an entry of a map apart from
+     *  its key and value. */
+    static final long ENTRY_BYTES = 40;
+    /** Approximate number of bytes taken by a string apart from its
+     *  characters. */
+    private static final long STRING_BYTES = 40;
+    /** No object heavier than this fraction of the capacity is cached. */
+    private static final int LARGEST_SHARE = 8;
+
+    /** Largest total weight of the cached objects. */
+    private final long _capacity;
+    /** Entries by id, least recently used first. */
+    private final LinkedHashMap<String, Entry> _entries;
+    /** Total weight of the cached objects. */
+    private long _weight;
+    /** Number of lookups that found their object. */
+    private long _hits;
+    /** Number of lookups that did not. */
+    private long _misses;
+}
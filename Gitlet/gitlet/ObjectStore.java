@@ -0,0 +1,274 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/** The store of blobs, trees and commits in a repository.  New objects are
+ *  compressed and appended to a single pack; objects written by older
+ *  versions as one file per object under the blobs and commits
+ *  directories are still found there.  Those loose objects are kept in
+ *  256 subdirectories named by the first two digits of their ids, so
+ *  that no directory grows too large; loose objects found directly in
+ *  the blobs or commits directory are moved into their subdirectories
+ *  the first time the store is opened, after which a marker in the pack
+ *  directory records that none are left.  Every object is named by the
+ *  SHA-1 hash of its uncompressed contents.
+ */
+class ObjectStore {
+
+    /** Type of a blob, the contents of a tracked file. */
+    static final int BLOB = 1;
+    /** Type of a serialized commit. */
+    static final int COMMIT = 2;
+    /** Type of a tree, the contents of one directory of a snapshot. */
+    static final int TREE = 3;
+    /** Number of leading id digits naming the subdirectory of a loose
+     *  object. */
+    private static final int SHARD = 2;
+
+    /** A store whose pack lives in directory PACKS. */
+    ObjectStore(File packs) {
+        _pack = new PackFile(Utils.join(packs, "objects.pack"),
+                             Utils.join(packs, "objects.idx"));
+        File sharded = Utils.join(packs, "sharded");
+        if (!sharded.exists()) {
+            shard(looseDir(COMMIT));
+            shard(looseDir(BLOB));
+            if (packs.isDirectory() || packs.mkdir()) {
+                Utils.writeContents(sharded);
+            }
+        }
+    }
+
+    /** Return true iff this store holds an object of type TYPE named ID. */
+    boolean contains(String id, int type) {
+        if (!isId(id)) {
+            return false;
+        }
+        if (_pack.contains(id, type)) {
+            return true;
+        }
+        File loose = looseFile(id, type);
+        return loose != null && loose.isFile();
+    }
+
+    /** Return the contents of the object of type TYPE named ID, or null if
+     *  there is no such object. */
+    byte[] read(String id, int type) {
+        if (!isId(id)) {
+            return null;
+        }
+        if (_pack.contains(id, type)) {
+            return _pack.read(id, type);
+        }
+        File loose = looseFile(id, type);
+        return loose != null && loose.isFile()
+            ? Utils.readContents(loose) : null;
+    }
+
+    /** Return a stream delivering the contents of the object of type TYPE
+     *  named ID, or null if there is no such object. */
+    InputStream open(String id, int type) throws IOException {
+        if (!isId(id)) {
+            return null;
+        }
+        if (_pack.contains(id, type)) {
+            return _pack.open(id, type);
+        }
+        File loose = looseFile(id, type);
+        return loose != null && loose.isFile()
+            ? new FileInputStream(loose) : null;
+    }
+
+    /** Write the contents of the object of type TYPE named ID to the file
+     *  DEST, replacing what it held, without holding the whole object in
+     *  memory.  Returns false, having done nothing, if there is no such
+     *  object. */
+    boolean copyTo(String id, int type, Path dest) throws IOException {
+        if (!isId(id)) {
+            return false;
+        }
+        if (_pack.contains(id, type)) {
+            return _pack.copyTo(id, type, dest);
+        }
+        File loose = looseFile(id, type);
+        if (loose == null || !loose.isFile()) {
+            return false;
+        }
+        Files.copy(loose.toPath(), dest, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /** Store CONTENTS as an object of type TYPE, returning its id. */
+    String put(int type, byte[] contents) {
+        return put(type, new ByteArrayInputStream(contents));
+    }
+
+    /** Store the contents delivered by IN as an object of type TYPE,
+     *  returning its id.  IN is read once, in bounded memory. */
+    String put(int type, InputStream in) {
+        return _pack.append(type, in);
+    }
+
+    /** Return the id that a blob holding the contents of FILE would have,
+     *  reading FILE once in bounded memory. */
+    static String idOf(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath())) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+            while (ch.read(buf) >= 0) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            }
+            return PackFile.toHex(md.digest());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Return the ids of all objects of type TYPE in sorted order. */
+    List<String> list(int type) {
+        ArrayList<String> result = new ArrayList<>(_pack.ids(type));
+        List<String> loose = looseIds(type, "");
+        if (!loose.isEmpty()) {
+            result.addAll(loose);
+            Collections.sort(result);
+        }
+        return result;
+    }
+
+    /** Return, in sorted order, the ids of up to MAX objects of type TYPE
+     *  whose ids start with PREFIX.  Returns an empty list if PREFIX is not
+     *  a string of lowercase hexadecimal digits. */
+    List<String> withPrefix(String prefix, int type, int max) {
+        if (prefix.isEmpty() || prefix.length() > Utils.UID_LENGTH
+            || !isId(prefix + "0".repeat(Utils.UID_LENGTH
+                                         - prefix.length()))) {
+            return new ArrayList<>();
+        }
+        TreeSet<String> found =
+            new TreeSet<>(_pack.idsWithPrefix(prefix, type, max));
+        found.addAll(looseIds(type, prefix));
+        List<String> result = new ArrayList<>(found);
+        return result.size() > max ? result.subList(0, max) : result;
+    }
+
+    /** Write out any index updates and release open files. */
+    void flush() {
+        _pack.flush();
+    }
+
+    /** Return the file in which the loose object of type TYPE named ID
+     *  would be kept, or null if there are no loose objects of that
+     *  type. */
+    private static File looseFile(String id, int type) {
+        File dir = looseDir(type);
+        return dir == null ? null
+            : Utils.join(dir, id.substring(0, SHARD), id.substring(SHARD));
+    }
+
+    /** Return the ids of the loose objects of type TYPE whose ids start
+     *  with PREFIX, in sorted order.  Only the subdirectories that can
+     *  hold such ids are listed. */
+    private static List<String> looseIds(int type, String prefix) {
+        List<String> result = new ArrayList<>();
+        File dir = looseDir(type);
+        if (dir == null || !dir.isDirectory()) {
+            return result;
+        }
+        String[] shards = prefix.length() >= SHARD
+            ? new String[] { prefix.substring(0, SHARD) } : dir.list();
+        if (shards == null) {
+            return result;
+        }
+        Arrays.sort(shards);
+        for (String shard : shards) {
+            if (shard.length() != SHARD || (!shard.startsWith(prefix)
+                && !prefix.startsWith(shard))) {
+                continue;
+            }
+            List<String> names =
+                Utils.plainFilenamesIn(Utils.join(dir, shard));
+            if (names == null) {
+                continue;
+            }
+            for (String name : names) {
+                String id = shard + name;
+                if (id.startsWith(prefix) && isId(id)) {
+                    result.add(id);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Move the loose objects kept directly in DIR by older versions into
+     *  their subdirectories. */
+    private static void shard(File dir) {
+        List<String> flat = dir == null ? null : Utils.plainFilenamesIn(dir);
+        if (flat == null) {
+            return;
+        }
+        try {
+            for (String id : flat) {
+                if (!isId(id)) {
+                    continue;
+                }
+                File shard = Utils.join(dir, id.substring(0, SHARD));
+                shard.mkdir();
+                Files.move(Utils.join(dir, id).toPath(),
+                           Utils.join(shard, id.substring(SHARD)).toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException excp) {
+            throw Utils.error("Cannot move loose objects: %s",
+                              excp.getMessage());
+        }
+    }
+
+    /** Return the directory of loose objects of type TYPE, or null if
+     *  older versions did not store objects of that type. */
+    private static File looseDir(int type) {
+        switch (type) {
+        case COMMIT:
+            return Repository.COMMITS;
+        case BLOB:
+            return Repository.BLOBS;
+        default:
+            return null;
+        }
+    }
+
+    /** Return true iff ID is a well-formed object id. */
+    static boolean isId(String id) {
+        if (id == null || id.length() != Utils.UID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i += 1) {
+            if (Character.digit(id.charAt(i), 16) < 0
+                || Character.isUpperCase(id.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The pack holding objects written by this version. */
+    private final PackFile _pack;
+}
@@ -0,0 +1,641 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/** An append-only file of objects together with a sorted index over it.
+ *  The pack is a header followed by records, each holding a type byte,
+ *  the 20-byte object id, an encoding byte, the length of the object,
+ *  the length of the payload as stored, and the payload itself.  Payloads
+ *  are deflated unless their contents do not compress.
+ *  The index is a fan-out table of 256 cumulative counts followed by the
+ *  ids, their types and their offsets in the pack, sorted by id and then
+ *  type, so that a lookup is a binary search within one fan-out bucket.
+ *  Since ids are hashes of contents alone, objects of different types
+ *  with the same contents, such as an empty tree and an empty file, have
+ *  the same id; each is a separate entry, found by id and type together.
+ *  Records appended
+ *  since the index was last written are found by scanning the tail of
+ *  the pack, so a pack whose index was never rewritten is still sound.
+ */
+class PackFile {
+
+    /** Magic number at the start of a pack. */
+    private static final int PACK_MAGIC = 0x4750414b;
+    /** Magic number at the start of an index. */
+    private static final int INDEX_MAGIC = 0x47494458;
+    /** Version of the pack and index formats. */
+    private static final int VERSION = 2;
+    /** Length of the pack header. */
+    private static final int PACK_HEADER = 8;
+    /** Number of bytes in a binary object id. */
+    private static final int ID_BYTES = Utils.UID_LENGTH / 2;
+    /** Position of the encoding within a record header. */
+    private static final int ENCODING_POS = 1 + ID_BYTES;
+    /** Position of the object length within a record header. */
+    private static final int LENGTH_POS = ENCODING_POS + 1;
+    /** Position of the stored payload length within a record header. */
+    private static final int STORED_POS = LENGTH_POS + 8;
+    /** Length of a record header. */
+    private static final int RECORD_HEADER = STORED_POS + 8;
+    /** Encoding of a payload stored as is. */
+    private static final int STORED = 0;
+    /** Encoding of a deflated payload. */
+    private static final int DEFLATED = 1;
+    /** Size of buffers used to stream payloads. */
+    private static final int BUFFER_SIZE = 8192;
+    /** Size of the first block of an object, used to decide whether to
+     *  deflate it. */
+    private static final int SAMPLE_SIZE = 1 << 16;
+    /** Length of the index header: magic, version, count, covered. */
+    private static final int INDEX_HEADER = 20;
+    /** Length of the fan-out table. */
+    private static final int FANOUT = 256 * 4;
+
+    /** A pack stored in PACK and indexed by INDEX. */
+    PackFile(File pack, File index) {
+        _packFile = pack;
+        _indexFile = index;
+        _pending = new TreeMap<>();
+        loadIndex();
+        scanTail();
+    }
+
+    /** Return true iff this pack holds an object of type TYPE named
+     *  ID. */
+    boolean contains(String id, int type) {
+        return lookup(id, type) != null;
+    }
+
+    /** Return the contents of the object of type TYPE named ID, or null if
+     *  this pack does not hold it. */
+    byte[] read(String id, int type) {
+        try (InputStream in = open(id, type)) {
+            return in == null ? null : in.readAllBytes();
+        } catch (IOException excp) {
+            throw Utils.error("Cannot read object %s: %s", id,
+                              excp.getMessage());
+        }
+    }
+
+    /** Return a stream delivering the contents of the object of type TYPE
+     *  named ID, or null if this pack does not hold it. */
+    InputStream open(String id, int type) {
+        Entry e = lookup(id, type);
+        if (e == null) {
+            return null;
+        }
+        try {
+            FileChannel ch = channel();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            readFully(ch, header, e.offset);
+            InputStream payload =
+                new BufferedInputStream(
+                    new RegionInputStream(ch, e.offset + RECORD_HEADER,
+                                          header.getLong(STORED_POS)),
+                    BUFFER_SIZE);
+            if (header.get(ENCODING_POS) == DEFLATED) {
+                return new InflaterInputStream(payload);
+            }
+            return payload;
+        } catch (IOException excp) {
+            throw Utils.error("Cannot read object %s: %s", id,
+                              excp.getMessage());
+        }
+    }
+
+    /** Write the contents of the object of type TYPE named ID to the file
+     *  DEST,
+     *  replacing what it held.  Returns false, having done nothing, if
+     *  this pack does not hold the object.  Stored payloads are copied
+     *  from the pack to DEST by the operating system and deflated ones
+     *  are inflated as they are written, so memory use does not depend on
+     *  the size of the object. */
+    boolean copyTo(String id, int type, Path dest) {
+        Entry e = lookup(id, type);
+        if (e == null) {
+            return false;
+        }
+        try {
+            FileChannel ch = channel();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            readFully(ch, header, e.offset);
+            if (header.get(ENCODING_POS) == DEFLATED) {
+                try (InputStream in = open(id, type)) {
+                    Files.copy(in, dest, StandardCopyOption.REPLACE_EXISTING);
+                }
+                return true;
+            }
+            long pos = e.offset + RECORD_HEADER;
+            long end = pos + header.getLong(STORED_POS);
+            try (FileChannel out =
+                     FileChannel.open(dest, StandardOpenOption.WRITE,
+                                      StandardOpenOption.CREATE,
+                                      StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (pos < end) {
+                    long n = ch.transferTo(pos, end - pos, out);
+                    if (n <= 0) {
+                        throw new IOException("unexpected end of pack");
+                    }
+                    pos += n;
+                }
+            }
+            return true;
+        } catch (IOException excp) {
+            throw Utils.error("Cannot read object %s: %s", id,
+                              excp.getMessage());
+        }
+    }
+
+    /** Append an object of type TYPE whose contents are delivered by IN,
+     *  unless this pack already holds it, and return its id.  The contents
+     *  are hashed and written to the pack in one pass.  They are deflated
+     *  unless deflating their first block does not save space, in which
+     *  case they are stored as they are. */
+    String append(int type, InputStream in) {
+        try {
+            FileChannel ch = channel();
+            long offset = ch.size();
+            long start = offset + RECORD_HEADER;
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] buf = new byte[SAMPLE_SIZE];
+            int n = in.readNBytes(buf, 0, buf.length);
+            int encoding = compresses(buf, n) ? DEFLATED : STORED;
+            Deflater deflater = new Deflater();
+            long length = 0;
+            try {
+                ch.position(start);
+                OutputStream out = Channels.newOutputStream(ch);
+                if (encoding == DEFLATED) {
+                    out = new DeflaterOutputStream(out, deflater,
+                                                   BUFFER_SIZE);
+                }
+                while (n > 0) {
+                    md.update(buf, 0, n);
+                    out.write(buf, 0, n);
+                    length += n;
+                    n = in.read(buf);
+                }
+                if (encoding == DEFLATED) {
+                    ((DeflaterOutputStream) out).finish();
+                }
+            } finally {
+                deflater.end();
+            }
+            String id = toHex(md.digest());
+            if (contains(id, type)) {
+                ch.truncate(offset);
+                return id;
+            }
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            header.put((byte) type).put(toBytes(id)).put((byte) encoding);
+            header.putLong(length).putLong(ch.position() - start).flip();
+            writeFully(ch, header, offset);
+            _pending.put(key(id, type), new Entry(type, offset));
+            return id;
+        } catch (IOException excp) {
+            throw Utils.error("Cannot write object: %s", excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Return true iff deflating the first N bytes of SAMPLE makes them
+     *  appreciably smaller. */
+    private static boolean compresses(byte[] sample, int n) {
+        if (n == 0) {
+            return false;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, n);
+            deflater.finish();
+            byte[] scratch = new byte[BUFFER_SIZE];
+            long total = 0;
+            while (!deflater.finished() && total < n) {
+                total += deflater.deflate(scratch);
+            }
+            return total < n - n / 10;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Return the sorted ids of all objects of type TYPE in this pack. */
+    List<String> ids(int type) {
+        ArrayList<String> result = new ArrayList<>();
+        int n = 0;
+        for (Map.Entry<String, Entry> pend : _pending.entrySet()) {
+            while (n < _count && keyAt(n).compareTo(pend.getKey()) < 0) {
+                if (_index.get(typePos(n)) == type) {
+                    result.add(idAt(n));
+                }
+                n += 1;
+            }
+            if (pend.getValue().type == type) {
+                result.add(pend.getKey().substring(0, Utils.UID_LENGTH));
+            }
+        }
+        for (; n < _count; n += 1) {
+            if (_index.get(typePos(n)) == type) {
+                result.add(idAt(n));
+            }
+        }
+        return result;
+    }
+
+    /** Return, in sorted order, the ids of up to MAX objects of type TYPE
+     *  whose ids start with PREFIX, a string of lowercase hexadecimal
+     *  digits.  The index is searched for the first id not less than
+     *  PREFIX and read forward from there. */
+    List<String> idsWithPrefix(String prefix, int type, int max) {
+        TreeSet<String> found = new TreeSet<>();
+        String low = (prefix + "0".repeat(Utils.UID_LENGTH))
+            .substring(0, Utils.UID_LENGTH);
+        for (Map.Entry<String, Entry> e
+                 : _pending.tailMap(low, true).entrySet()) {
+            if (!e.getKey().startsWith(prefix) || found.size() == max) {
+                break;
+            }
+            if (e.getValue().type == type) {
+                found.add(e.getKey().substring(0, Utils.UID_LENGTH));
+            }
+        }
+        byte[] key = toBytes(low);
+        int lo = 0;
+        int hi = _count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareAt(mid, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int seen = 0;
+        for (int n = lo; n < _count && seen < max; n += 1) {
+            String id = idAt(n);
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            if (_index.get(typePos(n)) == type) {
+                found.add(id);
+                seen += 1;
+            }
+        }
+        List<String> result = new ArrayList<>(found);
+        return result.size() > max ? result.subList(0, max) : result;
+    }
+
+    /** Rewrite the index so that it covers every record in the pack, and
+     *  release open files. */
+    void flush() {
+        try {
+            if (!_pending.isEmpty()) {
+                writeIndex();
+            }
+            if (_channel != null) {
+                _channel.close();
+                _channel = null;
+            }
+        } catch (IOException excp) {
+            throw Utils.error("Cannot write pack index: %s",
+                              excp.getMessage());
+        }
+    }
+
+    /** Return the index entry for the object of type TYPE named ID, or
+     *  null if there is none. */
+    private Entry lookup(String id, int type) {
+        Entry e = _pending.get(key(id, type));
+        if (e != null || _count == 0) {
+            return e;
+        }
+        byte[] key = toBytes(id);
+        int bucket = key[0] & 0xff;
+        int lo = bucket == 0 ? 0 : _index.getInt(INDEX_HEADER
+                                                  + 4 * (bucket - 1));
+        int hi = _index.getInt(INDEX_HEADER + 4 * bucket) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareAt(mid, key);
+            if (c == 0) {
+                c = _index.get(typePos(mid)) - type;
+            }
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return new Entry(type, _index.getLong(offsetPos(mid)));
+            }
+        }
+        return null;
+    }
+
+    /** Return the key of the object of type TYPE named ID among pending
+     *  entries, which orders entries by id and then type. */
+    private static String key(String id, int type) {
+        return id + type;
+    }
+
+    /** Return the key of the entry at index position N. */
+    private String keyAt(int n) {
+        return key(idAt(n), _index.get(typePos(n)));
+    }
+
+    /** Compare the id at index position N with KEY. */
+    private int compareAt(int n, byte[] key) {
+        int base = idPos(n);
+        for (int i = 0; i < key.length; i += 1) {
+            int c = (_index.get(base + i) & 0xff) - (key[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /** Return the hexadecimal id at index position N. */
+    private String idAt(int n) {
+        byte[] id = new byte[ID_BYTES];
+        _index.get(idPos(n), id);
+        return toHex(id);
+    }
+
+    /** Return the byte position of the Nth id in the index. */
+    private int idPos(int n) {
+        return INDEX_HEADER + FANOUT + n * ID_BYTES;
+    }
+
+    /** Return the byte position of the Nth type in the index. */
+    private int typePos(int n) {
+        return idPos(_count) + n;
+    }
+
+    /** Return the byte position of the Nth offset in the index. */
+    private int offsetPos(int n) {
+        return idPos(_count) + _count + n * 8;
+    }
+
+    /** Map the index file, if there is one. */
+    private void loadIndex() {
+        _count = 0;
+        _covered = PACK_HEADER;
+        if (!_indexFile.isFile()) {
+            return;
+        }
+        try (FileChannel ch = FileChannel.open(_indexFile.toPath())) {
+            _index = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } catch (IOException excp) {
+            throw Utils.error("Cannot read pack index: %s",
+                              excp.getMessage());
+        }
+        if (_index.getInt(0) != INDEX_MAGIC || _index.getInt(4) != VERSION) {
+            throw Utils.error("Unrecognized pack index format.");
+        }
+        _count = _index.getInt(8);
+        _covered = _index.getLong(12);
+    }
+
+    /** Add entries for records beyond the part of the pack covered by the
+     *  index, discarding a partially written final record. */
+    private void scanTail() {
+        if (!_packFile.isFile() || _packFile.length() <= _covered) {
+            return;
+        }
+        try {
+            FileChannel ch = channel();
+            long size = ch.size();
+            long pos = _covered;
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            while (pos + RECORD_HEADER <= size) {
+                header.clear();
+                readFully(ch, header, pos);
+                header.flip();
+                int type = header.get();
+                byte[] id = new byte[ID_BYTES];
+                header.get(id);
+                long end = pos + RECORD_HEADER + header.getLong(STORED_POS);
+                if (type == 0 || end > size) {
+                    break;
+                }
+                _pending.put(key(toHex(id), type), new Entry(type, pos));
+                pos = end;
+            }
+            if (pos < size) {
+                ch.truncate(pos);
+            }
+        } catch (IOException excp) {
+            throw Utils.error("Cannot read pack: %s", excp.getMessage());
+        }
+    }
+
+    /** Write a new index covering the existing index and all pending
+     *  entries, and replace the old one with it. */
+    private void writeIndex() throws IOException {
+        int total = _count + _pending.size();
+        ByteBuffer out = ByteBuffer.allocate(INDEX_HEADER + FANOUT
+                                             + total * (ID_BYTES + 9));
+        out.putInt(INDEX_MAGIC).putInt(VERSION).putInt(total);
+        out.putLong(channel().size());
+        byte[][] ids = new byte[total][];
+        byte[] types = new byte[total];
+        long[] offsets = new long[total];
+        int k = 0, n = 0;
+        for (Map.Entry<String, Entry> pend : _pending.entrySet()) {
+            byte[] key = toBytes(pend.getKey().substring(0,
+                                                         Utils.UID_LENGTH));
+            for (; n < _count && keyAt(n).compareTo(pend.getKey()) < 0;
+                 n += 1, k += 1) {
+                ids[k] = toBytes(idAt(n));
+                types[k] = _index.get(typePos(n));
+                offsets[k] = _index.getLong(offsetPos(n));
+            }
+            ids[k] = key;
+            types[k] = (byte) pend.getValue().type;
+            offsets[k] = pend.getValue().offset;
+            k += 1;
+        }
+        for (; n < _count; n += 1, k += 1) {
+            ids[k] = toBytes(idAt(n));
+            types[k] = _index.get(typePos(n));
+            offsets[k] = _index.getLong(offsetPos(n));
+        }
+        int[] fanout = new int[256];
+        for (byte[] id : ids) {
+            fanout[id[0] & 0xff] += 1;
+        }
+        for (int i = 0, sum = 0; i < 256; i += 1) {
+            sum += fanout[i];
+            out.putInt(sum);
+        }
+        for (byte[] id : ids) {
+            out.put(id);
+        }
+        out.put(types);
+        for (long offset : offsets) {
+            out.putLong(offset);
+        }
+        File tmp = new File(_indexFile.getPath() + ".tmp");
+        Utils.writeContents(tmp, out.array());
+        Files.move(tmp.toPath(), _indexFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        _pending.clear();
+        loadIndex();
+    }
+
+    /** Return a channel open on the pack, creating the pack if needed. */
+    private synchronized FileChannel channel() throws IOException {
+        if (_channel == null) {
+            _packFile.getParentFile().mkdirs();
+            _channel = FileChannel.open(_packFile.toPath(),
+                                        StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE,
+                                        StandardOpenOption.CREATE);
+            ByteBuffer header = ByteBuffer.allocate(PACK_HEADER);
+            if (_channel.size() == 0) {
+                header.putInt(PACK_MAGIC).putInt(VERSION).flip();
+                writeFully(_channel, header, 0);
+            } else {
+                readFully(_channel, header, 0);
+                if (header.getInt(0) != PACK_MAGIC
+                    || header.getInt(4) != VERSION) {
+                    throw Utils.error("Unrecognized pack format.");
+                }
+            }
+        }
+        return _channel;
+    }
+
+    /** Fill BUF from CH starting at POSITION. */
+    private static void readFully(FileChannel ch, ByteBuffer buf,
+                                  long position) throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos);
+            if (n < 0) {
+                throw new IOException("unexpected end of pack");
+            }
+            pos += n;
+        }
+    }
+
+    /** Write all of BUF to CH starting at POSITION. */
+    private static void writeFully(FileChannel ch, ByteBuffer buf,
+                                   long position) throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            pos += ch.write(buf, pos);
+        }
+    }
+
+    /** Return the binary form of the hexadecimal id ID. */
+    static byte[] toBytes(String id) {
+        byte[] result = new byte[id.length() / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = (byte) Integer.parseInt(id.substring(2 * i,
+                                                             2 * i + 2), 16);
+        }
+        return result;
+    }
+
+    /** Return the hexadecimal form of the binary id ID. */
+    static String toHex(byte[] id) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : id) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16));
+            result.append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+
+    /** A stream over a region of a channel that reads by position, so
+     *  that several may be open on one channel at once. */
+    private static class RegionInputStream extends InputStream {
+        /** A stream over the LENGTH bytes of CH starting at START. */
+        RegionInputStream(FileChannel ch, long start, long length) {
+            _ch = ch;
+            _pos = start;
+            _end = start + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (_pos >= _end) {
+                return -1;
+            }
+            int n = (int) Math.min(len, _end - _pos);
+            n = _ch.read(ByteBuffer.wrap(b, off, n), _pos);
+            if (n < 0) {
+                throw new IOException("unexpected end of pack");
+            }
+            _pos += n;
+            return n;
+        }
+
+        /** The channel read. */
+        private final FileChannel _ch;
+        /** Position of the next byte to deliver. */
+        private long _pos;
+        /** Position just past the region. */
+        private final long _end;
+    }
+
+    /** The location and type of one object in the pack. */
+    private static class Entry {
+        /** An entry for an object of type TYPE at OFFSET. */
+        Entry(int type, long offset) {
+            this.type = type;
+            this.offset = offset;
+        }
+
+        /** Type of the object. */
+        private final int type;
+        /** Position of the object's record in the pack. */
+        private final long offset;
+    }
+
+    /** The pack data file. */
+    private final File _packFile;
+    /** The pack index file. */
+    private final File _indexFile;
+    /** Open channel on the pack, or null. */
+    private FileChannel _channel;
+    /** The mapped index, valid when _count > 0. */
+    private MappedByteBuffer _index;
+    /** Number of entries in the index. */
+    private int _count;
+    /** Length of the prefix of the pack covered by the index. */
+    private long _covered;
+    /** Entries for records not yet in the index, by id and type. */
+    private final TreeMap<String, Entry> _pending;
+}
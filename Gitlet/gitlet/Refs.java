@@ -0,0 +1,142 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** The branches of a repository and the branch HEAD is on.  HEAD is a
+ *  symbolic reference, a file holding "ref: " and the name of the current
+ *  branch.  Each branch is a file under the refs directory holding the id
+ *  of the commit it points to.  Once there are many branches they are
+ *  moved into a single packed-refs file of sorted "ID NAME" lines; a
+ *  branch file, if present, overrides the packed entry of the same name.
+ */
+class Refs {
+
+    /** Number of branch files beyond which they are packed. */
+    static final int PACK_THRESHOLD = 64;
+
+    /** Prefix of the contents of a symbolic reference. */
+    private static final String SYMBOLIC = "ref: ";
+
+    /** The references of a repository whose HEAD file is HEAD, whose branch
+     *  files are in REFS, and whose packed branches are in PACKED. */
+    Refs(File head, File refs, File packed) {
+        _head = head;
+        _refs = refs;
+        _packedFile = packed;
+    }
+
+    /** Return the name of the current branch. */
+    String current() {
+        String contents = Utils.readContentsAsString(_head).trim();
+        if (!contents.startsWith(SYMBOLIC)) {
+            throw Utils.error("HEAD is not on a branch.");
+        }
+        return contents.substring(SYMBOLIC.length());
+    }
+
+    /** Make BRANCH the current branch. */
+    void setCurrent(String branch) {
+        Utils.writeContents(_head, SYMBOLIC + branch + "\n");
+    }
+
+    /** Return the id of the commit BRANCH points to, or null if there is
+     *  no such branch. */
+    String resolve(String branch) {
+        File loose = Utils.join(_refs, branch);
+        if (loose.isFile()) {
+            return Utils.readContentsAsString(loose).trim();
+        }
+        return packed().get(branch);
+    }
+
+    /** Return true iff BRANCH exists. */
+    boolean exists(String branch) {
+        return resolve(branch) != null;
+    }
+
+    /** Point BRANCH at the commit ID, creating BRANCH if needed. */
+    void update(String branch, String id) {
+        _refs.mkdirs();
+        Utils.writeContents(Utils.join(_refs, branch), id + "\n");
+    }
+
+    /** Remove BRANCH. */
+    void delete(String branch) {
+        Utils.join(_refs, branch).delete();
+        TreeMap<String, String> packed = packed();
+        if (packed.remove(branch) != null) {
+            writePacked(packed);
+        }
+    }
+
+    /** Return the names of all branches in sorted order. */
+    List<String> branches() {
+        TreeMap<String, String> all = new TreeMap<>(packed());
+        List<String> loose = Utils.plainFilenamesIn(_refs);
+        if (loose != null) {
+            for (String name : loose) {
+                all.put(name, null);
+            }
+        }
+        return new ArrayList<>(all.keySet());
+    }
+
+    /** Move the branch files into the packed-refs file if there are more
+     *  than PACK_THRESHOLD of them. */
+    void packIfNeeded() {
+        List<String> loose = Utils.plainFilenamesIn(_refs);
+        if (loose == null || loose.size() <= PACK_THRESHOLD) {
+            return;
+        }
+        TreeMap<String, String> packed = packed();
+        for (String name : loose) {
+            packed.put(name, resolve(name));
+        }
+        writePacked(packed);
+        for (String name : loose) {
+            Utils.join(_refs, name).delete();
+        }
+    }
+
+    /** Return the contents of the packed-refs file, by branch name. */
+    private TreeMap<String, String> packed() {
+        if (_packed == null) {
+            _packed = new TreeMap<>();
+            if (_packedFile.isFile()) {
+                String text = Utils.readContentsAsString(_packedFile);
+                for (String line : text.split("\n")) {
+                    int space = line.indexOf(' ');
+                    if (space > 0) {
+                        _packed.put(line.substring(space + 1),
+                                    line.substring(0, space));
+                    }
+                }
+            }
+        }
+        return _packed;
+    }
+
+    /** Replace the packed-refs file with the branches in PACKED. */
+    private void writePacked(TreeMap<String, String> packed) {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> e : packed.entrySet()) {
+            text.append(e.getValue()).append(' ')
+                .append(e.getKey()).append('\n');
+        }
+        Utils.writeContents(_packedFile, text.toString());
+        _packed = packed;
+    }
+
+    /** The HEAD file. */
+    private final File _head;
+    /** The directory of branch files. */
+    private final File _refs;
+    /** The packed-refs file. */
+    private final File _packedFile;
+    /** Contents of the packed-refs file, read when first needed. */
+    private TreeMap<String, String> _packed;
+}
@@ -4,11 +4,22 @@ package gitlet;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.TreeMap;
 import java.util.HashSet;
-import java.util.ArrayList;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Formatter;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 
 public class Repository {
@@ -17,29 +28,66 @@ public class Repository {
     static final File CWD = new File(".");
     /** Path to .gitlet.*/
     static final File REPO = Utils.join(CWD, ".gitlet");
-    /** Path to commits.*/
+    /** Path to loose commits written by older versions.*/
     static final File COMMITS = Utils.join(REPO, "commits");
-    /** Path to branches.*/
+    /** Path to branches kept by older versions.*/
     static final File BRANCHES = Utils.join(REPO, "branches");
+    /** Path to branch files.*/
+    static final File REFS = Utils.join(REPO, "refs");
+    /** Path to packed branches.*/
+    static final File PACKED_REFS = Utils.join(REPO, "packed-refs");
     /** Path to Staging Area.*/
     static final File STAGE = Utils.join(REPO, "stage");
-    /** Path to blobs.*/
+    /** Path to loose blobs written by older versions.*/
     static final File BLOBS = Utils.join(REPO, "blobs");
+    /** Path to packed objects.*/
+    static final File PACKS = Utils.join(REPO, "pack");
+    /** Path to the commit graph.*/
+    static final File GRAPH = Utils.join(REPO, "commit-graph");
+    /** Path to the log of commits added since the graph was written.*/
+    static final File GRAPH_TAIL = Utils.join(REPO, "commit-graph.tail");
+    /** Path to the stat cache of working files.*/
+    static final File INDEX = Utils.join(REPO, "index");
+    /** Largest number of threads used for parallel reads.*/
+    static final int MAX_WORKERS = 8;
+    /** Number of commits global-log reads ahead of the one it prints.*/
+    private static final int READ_AHEAD = 64;
+    /** Number of characters global-log collects before writing them.*/
+    private static final int OUTPUT_BUFFER = 1 << 16;
+    /** Largest number of bytes of decoded objects kept in memory.*/
+    private static final long CACHE_CAPACITY = 32 << 20;
+    /** System property that, when true, has the use of the object cache
+     *  reported on the standard error at the end of each command.*/
+    private static final String CACHE_STATS = "gitlet.cacheStats";
+    /** Path to the log of commit messages.*/
+    static final File MESSAGES = Utils.join(REPO, "messages");
+    /** Path to the index of commit messages.*/
+    static final File MESSAGES_INDEX = Utils.join(REPO, "messages.idx");
     /** Path to HEAD.*/
-    static final File HEADPATH = Utils.join(BRANCHES, "head");
-    /** Path to current branch name.*/
-    static final File CURRENTACTIVE = Utils.join(BRANCHES, "current_active");
-    /** Used to store path to current branch. */
-    private static File activePath;
-    /** Treemap of filenames to commits. */
-    private transient TreeMap<String, Commit> commitTree;
+    static final File HEADPATH = Utils.join(REPO, "HEAD");
     /** Staging Area of this repository. */
     private Stage stage;
+    /** Head commit of the current branch, read when first needed. */
+    private Commit _active;
+    /** Store of blobs and commits, opened on first use. */
+    private static ObjectStore objects;
+    /** Summary of the commit history, opened on first use. */
+    private static CommitGraph graph;
+    /** Branches of this repository, opened on first use. */
+    private static Refs refs;
+    /** Pool of threads used for parallel reads, created on first use. */
+    private static ForkJoinPool workers;
+    /** Index of commit messages, opened on first use. */
+    private static MessageIndex messages;
+    /** Stat data of working files, opened on first use. */
+    private static StatCache stats;
+    /** Recently used commits, trees and blobs.  Kept by a daemon across
+     *  commands, since stored objects never change. */
+    private static ObjectCache cache;
 
 
 
     public Repository() {
-        commitTree = new TreeMap<>();
         stage = new Stage();
     }
 
@@ -51,50 +99,54 @@ public class Repository {
         CWD.mkdirs();
 
         if (REPO.exists()) {
-            System.out.println("Gitlet version-control system already"
+            throw Utils.error("Gitlet version-control system already"
                     + " exists in the current directory.");
-            return;
         }
         REPO.mkdirs();
-        BLOBS.mkdirs();
-        BRANCHES.mkdirs();
-        COMMITS.mkdirs();
+        PACKS.mkdirs();
+        REFS.mkdirs();
         STAGE.createNewFile();
 
         Commit in = new Commit("initial commit");
-        commitTree.put(in.getHash(), in);
         in.immortalize();
 
         stage = new Stage();
         stage.saveStage();
 
-        HEADPATH.createNewFile();
-        Utils.writeObject(CURRENTACTIVE, "master");
-        setActivePath("master");
-        activePath.createNewFile();
-        updateHead(in);
+        refs().update("master", in.getHash());
+        refs().setCurrent("master");
     }
 
-    public void add(String filename) throws IOException {
-        stage = new Stage(STAGE);
-        File file = Utils.join(CWD, filename);
-        if (!file.exists()) {
-            System.out.println("File does not exist.");
-            return;
+    /** Stage every file named by PATHS, each a file, a directory whose
+     *  files are all staged, or "." for the whole working directory.
+     *  Nothing is staged if any of PATHS does not exist.  The stage is
+     *  written once, after all the files have been added. */
+    public void add(List<String> paths) throws IOException {
+        TreeSet<String> files = new TreeSet<>();
+        for (String path : paths) {
+            List<String> found = WorkingTree.files(path);
+            if (found == null) {
+                throw Utils.error("File does not exist.");
+            }
+            files.addAll(found);
         }
 
-        if (stage.getRms().contains(filename)) {
+        stage = new Stage(STAGE);
+        SortedMap<String, String> headFiles = activeBranch().getTracks();
+        for (String filename : files) {
+            File file = Utils.join(CWD, filename);
             stage.removeFromRms(filename);
-            stage.saveStage();
-        }
-        if (sameAsHead(filename)) {
-            stage.removeFromAdds(filename);
-            stage.saveStage();
-            return;
+            String blob = stats().cachedId(filename, file);
+            if (blob == null || !objects().contains(blob, ObjectStore.BLOB)) {
+                blob = newBlob(file);
+                stats().record(filename, file, blob);
+            }
+            if (blob.equals(headFiles.get(filename))) {
+                stage.removeFromAdds(filename);
+            } else {
+                stage.stageForAddition(filename, blob);
+            }
         }
-
-        newBlob(file);
-        stage.stageForAddition(filename);
         stage.saveStage();
     }
 
@@ -102,8 +154,7 @@ public class Repository {
         stage = new Stage(STAGE);
         if (!stage.getAdds().containsKey(file)
                 && !activeBranch().getTracks().containsKey(file)) {
-            System.out.println("No reason to remove the file.");
-            return;
+            throw Utils.error("No reason to remove the file.");
         }
         if (stage.getAdds().containsKey(file)) {
             stage.removeFromAdds(file);
@@ -112,8 +163,7 @@ public class Repository {
         if (active.getTracks().containsKey(file)) {
             stage.addToRms(file);
             stage.saveStage();
-            File f = Utils.join(CWD, file);
-            f.delete();
+            WorkingTree.delete(file);
         }
         stage.saveStage();
     }
@@ -122,34 +172,23 @@ public class Repository {
         Commit active = activeBranch();
         stage = new Stage(STAGE);
         if (stage.getAdds().isEmpty() && stage.getRms().isEmpty()) {
-            System.out.println("No changes added to the commit.");
-            return;
+            throw Utils.error("No changes added to the commit.");
         }
         Commit next = Commit.cloneAndUpdate(active, message, stage);
-        updateHead(next);
         next.immortalize();
+        updateHead(next);
         stage.clearStage();
         stage.saveStage();
     }
 
 
     public void find(String message) {
-        List<String> commitfiles = Utils.plainFilenamesIn(COMMITS);
-        boolean found = false;
-        if (commitfiles == null) {
-            System.out.println("Found no commit with that message");
-            return;
+        List<String> found = messages().find(message);
+        if (found.isEmpty()) {
+            throw Utils.error("Found no commit with that message");
         }
-        for (String file: commitfiles) {
-            File f = Utils.join(COMMITS, file);
-            Commit temp = commitFromFile(file);
-            if (temp.getMessage().equals(message)) {
-                found = true;
-                System.out.println(temp.getHash());
-            }
-        }
-        if (!found) {
-            System.out.println("Found no commit with that message");
+        for (String id : found) {
+            System.out.println(id);
         }
     }
 
@@ -165,167 +204,188 @@ public class Repository {
         logPrinter(commit);
     }
 
+    /** Print the log entry of every commit, in order of id.  Commits are
+     *  read and decoded in parallel, at most READ_AHEAD ahead of the one
+     *  being printed, and the entries are formatted into one buffer that
+     *  is written out in large pieces. */
     public void globalLog() {
-        List<String> commitfiles = Utils.plainFilenamesIn(COMMITS);
-        Commit temp;
-        assert commitfiles != null;
-        for (String file : commitfiles) {
-            File f = Utils.join(COMMITS, file);
-            temp = Utils.readObject(f, Commit.class);
-            logPrinter(temp);
+        List<String> ids = objects().list(ObjectStore.COMMIT);
+        ArrayDeque<Future<Commit>> ahead = new ArrayDeque<>();
+        StringBuilder text = new StringBuilder();
+        Formatter format = new Formatter(text);
+        int next = 0;
+        try {
+            while (next < ids.size() || !ahead.isEmpty()) {
+                while (next < ids.size() && ahead.size() < READ_AHEAD) {
+                    String id = ids.get(next);
+                    ahead.add(workers().submit(() -> commitFromFile(id)));
+                    next += 1;
+                }
+                logEntry(format, ahead.remove().get());
+                if (text.length() >= OUTPUT_BUFFER) {
+                    System.out.print(text);
+                    text.setLength(0);
+                }
+            }
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw new IllegalStateException(excp.getCause());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            return;
         }
+        System.out.print(text);
     }
 
     public void newBranch(String name) throws IOException {
-        File branch = Utils.join(BRANCHES, name);
-        if (branch.exists()) {
-            System.out.println("A branch with that name already exists.");
-            return;
+        if (refs().exists(name)) {
+            throw Utils.error("A branch with that name already exists.");
         } else {
-            branch.createNewFile();
-            Utils.writeObject(branch, activeBranch());
+            refs().update(name, refs().resolve(getCurrentActive()));
+            refs().packIfNeeded();
         }
     }
 
 
     public void deleteBranch(String name) throws IOException {
-        File branch = Utils.join(BRANCHES, name);
-        if (!branch.exists()) {
-            System.out.println("A branch with that name does not exist.");
-            return;
+        if (!refs().exists(name)) {
+            throw Utils.error("A branch with that name does not exist.");
         } else if (name.equals(getCurrentActive())) {
-            System.out.println("Cannot remove the current branch.");
-            return;
+            throw Utils.error("Cannot remove the current branch.");
         }
-        branch.delete();
+        refs().delete(name);
     }
 
     public void reset(String commitID) throws IOException {
-        File commit = Utils.join(COMMITS, commitID);
-        if (!commit.exists()) {
-            System.out.println("No commit with that id exists.");
-            return;
+        String id = resolveCommit(commitID);
+        if (id == null) {
+            throw Utils.error("No commit with that id exists.");
         }
-        Commit c = commitFromFile(commitID);
-
-        List<String> cwdFiles = Utils.plainFilenamesIn(CWD);
+        Commit c = commitFromFile(id);
+        checkoutSnapshot(c);
+        updateHead(c);
+    }
 
-        for (String file : cwdFiles) {
-            if (!activeBranch().getTracks().containsKey(file)
-                && c.getTracks().containsKey(file)) {
-                System.out.println("There is an untracked file in the way;"
+    /** Replace the tracked files in the working directory with those of
+     *  commit C and clear the stage.  Fails, changing nothing, if an
+     *  untracked file would be overwritten.  The files of the head and of
+     *  C are compared in one pass over both sorted maps: files only in
+     *  the head are deleted and files whose blob differs are written,
+     *  while a file with the same blob in both is written only if it is
+     *  missing or has been changed in the working directory. */
+    private void checkoutSnapshot(Commit c) throws IOException {
+        SortedMap<String, String> headFiles = activeBranch().getTracks();
+        SortedMap<String, String> files = c.getTracks();
+
+        for (String file : files.keySet()) {
+            if (!headFiles.containsKey(file)
+                && Utils.join(CWD, file).isFile()) {
+                throw Utils.error("There is an untracked file in the way;"
                         + " delete it, or add and commit it first.");
-                return;
             }
         }
 
-
-
-
-        for (String file : c.getTracks().keySet()) {
-            checkoutCommit(c.getHash(), file);
-        }
-        for (String filename : activeBranch().getTracks().keySet()) {
-            if (!(c.getTracks().containsKey(filename))) {
-                Utils.restrictedDelete(Utils.join(CWD, filename));
+        Iterator<Map.Entry<String, String>> from =
+            headFiles.entrySet().iterator();
+        Iterator<Map.Entry<String, String>> to = files.entrySet().iterator();
+        Map.Entry<String, String> old = from.hasNext() ? from.next() : null;
+        Map.Entry<String, String> now = to.hasNext() ? to.next() : null;
+        while (old != null || now != null) {
+            int cmp = old == null ? 1 : now == null ? -1
+                : old.getKey().compareTo(now.getKey());
+            if (cmp < 0) {
+                WorkingTree.delete(old.getKey());
+            } else if (cmp > 0 || !old.getValue().equals(now.getValue())
+                       || !holds(now.getKey(), now.getValue())) {
+                writeBlob(now.getKey(), now.getValue());
+            }
+            if (cmp <= 0) {
+                old = from.hasNext() ? from.next() : null;
+            }
+            if (cmp >= 0) {
+                now = to.hasNext() ? to.next() : null;
             }
         }
         stage = new Stage();
         stage.saveStage();
+    }
 
-        updateHead(c);
-
+    /** Return true iff the working file PATH exists and holds the contents
+     *  of blob ID. */
+    private static boolean holds(String path, String id) throws IOException {
+        File file = Utils.join(CWD, path);
+        return file.isFile() && id.equals(stats().idOf(path, file));
     }
 
-    public void checkoutFile(String filename) {
+    public void checkoutFile(String filename) throws IOException {
         Commit active = activeBranch();
         overrwriteFile(filename, active);
     }
 
-    public void checkoutCommit(String commitID, String filename) {
-
-
-        List<String> commitFiles = Utils.plainFilenamesIn(COMMITS);
-        for (String file : commitFiles) {
-            if (file.contains(commitID)) {
-                commitID = file;
-            }
+    public void checkoutCommit(String commitID, String filename)
+            throws IOException {
+        String id = resolveCommit(commitID);
+        if (id == null) {
+            throw Utils.error("No commit with that ID exists.");
         }
-
-
-
-
-        File thisCommit = Utils.join(COMMITS, commitID);
-        if (!thisCommit.exists()) {
-            System.out.println("No commit with that ID exists.");
-            return;
-        }
-        Commit c = Utils.readObject(thisCommit, Commit.class);
+        Commit c = commitFromFile(id);
         if (!c.getTracks().containsKey(filename)) {
-            System.out.println("File does not exist in that commit.");
-            return;
+            throw Utils.error("File does not exist in that commit.");
         }
         overrwriteFile(filename, c);
     }
 
     public void checkoutBranch(String branchname) throws IOException {
-        File branch = Utils.join(BRANCHES, branchname);
-        if (!branch.exists()) {
-            System.out.println("No such branch exists.");
-            return;
+        String hash = refs().resolve(branchname);
+        if (hash == null) {
+            throw Utils.error("No such branch exists.");
         } else if (branchname.equals(getCurrentActive())) {
-            System.out.println("No need to checkout the current branch.");
-            return;
+            throw Utils.error("No need to checkout the current branch.");
         }
 
-        setActivePath(branchname);
-        Commit branchCommit = Utils.readObject(Utils.join
-                (BRANCHES, branchname), Commit.class);
-        String hash = branchCommit.getHash();
-        reset(hash);
+        checkoutSnapshot(commitFromFile(hash));
+        refs().setCurrent(branchname);
+        _active = null;
     }
 
-    public void status() {
+    public void status() throws IOException {
         stage = new Stage(STAGE);
-        List<String> branches = Utils.plainFilenamesIn(BRANCHES);
-        activePath = Utils.join(BRANCHES, getCurrentActive());
+        String current = getCurrentActive();
         System.out.println("=== Branches ===");
-        for (String branch: branches) {
-            if (!branch.equals("head") && !branch.equals("current_active")) {
-                if (getCurrentActive().equals(branch)) {
-                    System.out.println("*" + branch);
-                } else {
-                    System.out.println(branch);
-                }
+        for (String branch: refs().branches()) {
+            if (current.equals(branch)) {
+                System.out.println("*" + branch);
+            } else {
+                System.out.println(branch);
             }
         }
         System.out.println();
         System.out.println("=== Staged Files ===");
-        for (String add : stage.getAdds().keySet()) {
+        for (String add : new TreeSet<>(stage.getAdds().keySet())) {
             System.out.println(add);
         }
         System.out.println();
         System.out.println("=== Removed Files ===");
-        for (String rm : stage.getRms()) {
+        for (String rm : new TreeSet<>(stage.getRms())) {
             System.out.println(rm);
         }
         System.out.println();
         System.out.println("=== Modifications Not Staged For Commit ===");
-        for (String file : activeBranch().getTracks().keySet()) {
-            File fileinCWD = Utils.join(CWD, file);
-            if (fileinCWD.exists()) {
-                String cwdBlob = Utils.sha1
-                        (Utils.readContentsAsString(fileinCWD));
-                if (!cwdBlob.equals(activeBranch().getTracks().get(file))) {
-                    System.out.println(file);
-                }
+        SortedMap<String, String> headFiles = activeBranch().getTracks();
+        TreeMap<String, String> cwdBlobs =
+            WorkingTree.hash(headFiles.keySet());
+        for (Map.Entry<String, String> e : cwdBlobs.entrySet()) {
+            if (!e.getValue().equals(headFiles.get(e.getKey()))) {
+                System.out.println(e.getKey());
             }
         }
 
         System.out.println();
         System.out.println("=== Untracked Files ===");
-        for (String file : Utils.plainFilenamesIn(CWD)) {
-            if (!activeBranch().getTracks().containsKey(file)
+        for (String file : WorkingTree.files()) {
+            if (!headFiles.containsKey(file)
                 && !stage.getAdds().containsKey(file)) {
                 System.out.println(file);
             }
@@ -334,14 +394,13 @@ public class Repository {
     }
 
     public boolean mergeSpecialCases(String branch, Commit mergedIn,
-                                     Commit split, Commit split2,
-                                     Commit active) throws IOException {
+                                     Commit split, Commit active)
+            throws IOException {
 
         if (branch.equals(getCurrentActive())) {
-            System.out.println("Cannot merge a branch with itself.");
-            return true;
+            throw Utils.error("Cannot merge a branch with itself.");
         }
-        if (split2.getHash().equals(active.getHash())) {
+        if (split.getHash().equals(active.getHash())) {
             reset(mergedIn.getHash());
             System.out.println("Current branch fast-forwarded.");
             return true;
@@ -351,16 +410,15 @@ public class Repository {
                     + "ancestor of the current branch.");
             return true;
         }
-        stage = Utils.readObject(STAGE, Stage.class);
+        stage = new Stage(STAGE);
         if (!stage.getAdds().isEmpty() || !stage.getRms().isEmpty()) {
-            System.out.println("You have uncommitted changes.");
-            return true;
+            throw Utils.error("You have uncommitted changes.");
         }
-        for (String file : Utils.plainFilenamesIn(CWD)) {
-            if (!activeBranch().getTracks().containsKey(file)) {
-                System.out.println("There is an untracked file in the way; "
+        SortedMap<String, String> activeFiles = active.getTracks();
+        for (String file : WorkingTree.files()) {
+            if (!activeFiles.containsKey(file)) {
+                throw Utils.error("There is an untracked file in the way; "
                         + "delete it, or add and commit it first.");
-                return true;
             }
         }
         return false;
@@ -369,27 +427,23 @@ public class Repository {
 
 
     public void merge(String branch) throws IOException {
-        File f = Utils.join(BRANCHES, branch);
-        if (!f.exists()) {
-            System.out.println("A branch with that name does not exist.");
-            return;
+        String mergedInHash = refs().resolve(branch);
+        if (mergedInHash == null) {
+            throw Utils.error("A branch with that name does not exist.");
         }
         boolean mergeConflict = false;
-        Commit mergedIn = Utils.readObject(Utils.join
-                (BRANCHES, branch), Commit.class);
-        Commit split = splitPoint(breadthFirstTraverse(mergedIn),
-                activeBranch());
-        Commit split2 = splitPoint(breadthFirstTraverse(activeBranch()),
-                mergedIn);
+        Commit mergedIn = commitFromFile(mergedInHash);
         Commit active = activeBranch();
-        if (mergeSpecialCases(branch, mergedIn, split, split2, active)) {
+        Commit split = splitPoint(active, mergedIn);
+        if (mergeSpecialCases(branch, mergedIn, split, active)) {
             return;
         }
-        TreeMap<String, String> splitFiles = split.getTracks();
-        TreeMap<String, String> currFiles = active.getTracks();
-        TreeMap<String, String> branchFiles = mergedIn.getTracks();
+        SortedMap<String, String> splitFiles = split.getTracks();
+        SortedMap<String, String> currFiles = active.getTracks();
+        SortedMap<String, String> branchFiles = mergedIn.getTracks();
         HashSet<String> files = new HashSet<>();
-        stage = Utils.readObject(STAGE, Stage.class);
+        List<String> conflicts = new ArrayList<>();
+        stage = new Stage(STAGE);
         files.addAll(splitFiles.keySet());
         files.addAll(currFiles.keySet());
         files.addAll(branchFiles.keySet());
@@ -403,12 +457,17 @@ public class Repository {
                     Utils.join(CWD, file).delete();
                 } else {
                     stage.stageSpecificVersion(file, mergeVer);
+                    if (!mergeVer.equals(currVer)) {
+                        writeBlob(file, mergeVer);
+                    }
                 }
             }  else if (conflict(currVer, mergeVer, splitVer)) {
-                mergeConflict = true;
-                conflictHandler(file, branchFiles, currFiles);
+                conflicts.add(file);
             }
         }
+        Collections.sort(conflicts);
+        mergeConflict = conflictHandler(conflicts, splitFiles,
+                                        branchFiles, currFiles);
         if (mergeConflict) {
             System.out.println("Encountered a merge conflict.");
         }
@@ -465,63 +524,84 @@ public class Repository {
 
 
         if (stage.getAdds().isEmpty() && stage.getRms().isEmpty()) {
-            System.out.println("No changes added to the commit.");
-            return;
+            throw Utils.error("No changes added to the commit.");
         }
 
         Commit next = Commit.cloneAndUpdate(active, mergemessage, stage);
         next.assign2ndParent(b.getHash());
-        updateHead(next);
         next.immortalize();
+        updateHead(next);
         stage.clearStage();
         stage.saveStage();
     }
 
     /**PRINTERS.**/
 
-    public void testMethod() {
-        ArrayList<String> ancestors = breadthFirstTraverse(activeBranch());
-        for (String ancestor : ancestors) {
-            System.out.println(ancestor);
-        }
-        Commit sp = splitPoint(ancestors, activeBranch());
-        System.out.println(sp.getHash());
-    }
-
     public void logPrinter(Commit c) {
-        System.out.println("===");
-        System.out.println("commit " + c.getHash());
-        System.out.println("Date: " + c.getTime());
-        System.out.println(c.getMessage());
-        System.out.println();
-    }
-
-    public void conflictHandler(String file,
-                                TreeMap<String, String> branchFiles,
-                                TreeMap<String, String> currFiles)
-                                throws IOException {
-
-
-        String mergedInFileHash = branchFiles.get(file);
-        String currFileHash = currFiles.get(file);
-        String currcontents = "";
-        String mergecontents = "";
-
-        if (mergedInFileHash != null) {
-            mergecontents = getContentFromBlob(mergedInFileHash);
-        }
-        if (currFileHash != null) {
-            currcontents = getContentFromBlob(currFileHash);
+        StringBuilder text = new StringBuilder();
+        logEntry(new Formatter(text), c);
+        System.out.print(text);
+    }
+
+    /** Append the log entry of commit C to the destination of FORMAT. */
+    private static void logEntry(Formatter format, Commit c) {
+        format.format("===%ncommit %s%nDate: ", c.getHash());
+        c.formatTime(format);
+        format.format("%n%s%n%n", c.getMessage());
+    }
+
+    /** Merge line by line each of FILES, changed differently in the
+     *  current and given branches since the split point, whose files are
+     *  CURRFILES, BRANCHFILES and SPLITFILES, then stage and write the
+     *  results.  A file deleted on either side is a conflict as a whole.
+     *  The merges run in parallel, and their results are stored, in the
+     *  order of FILES, once all are done.  Returns true iff any file has
+     *  conflicting changes. */
+    public boolean conflictHandler(List<String> files,
+                                   SortedMap<String, String> splitFiles,
+                                   SortedMap<String, String> branchFiles,
+                                   SortedMap<String, String> currFiles)
+                                   throws IOException {
+        List<Future<LineMerge>> merges = new ArrayList<>();
+        for (String file : files) {
+            String splitFileHash = splitFiles.get(file);
+            String mergedInFileHash = branchFiles.get(file);
+            String currFileHash = currFiles.get(file);
+            merges.add(workers().submit(() -> {
+                byte[] currcontents = getContentFromBlob(currFileHash);
+                byte[] mergecontents = getContentFromBlob(mergedInFileHash);
+                if (currFileHash == null || mergedInFileHash == null) {
+                    return LineMerge.conflict(currcontents, mergecontents);
+                }
+                return LineMerge.merge(getContentFromBlob(splitFileHash),
+                                       currcontents, mergecontents);
+            }));
+        }
+        List<LineMerge> results = new ArrayList<>();
+        try {
+            for (Future<LineMerge> merge : merges) {
+                results.add(merge.get());
+            }
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw new IllegalStateException(excp.getCause());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw Utils.error("Merge interrupted.");
+        }
+        boolean conflicted = false;
+        for (int i = 0; i < files.size(); i += 1) {
+            LineMerge result = results.get(i);
+            String contentBlobCode = objects().put(ObjectStore.BLOB,
+                                                   result.contents());
+            stage.stageSpecificVersion(files.get(i), contentBlobCode);
+            writeBlob(files.get(i), contentBlobCode);
+            conflicted |= result.conflicted();
         }
-        String content = "<<<<<<< HEAD\n" + currcontents
-                + "=======\n"
-                + mergecontents + ">>>>>>>\n";
-        String contentBlobCode = Utils.sha1(content);
-        File blobFile = Utils.join(BLOBS, contentBlobCode);
-        blobFile.createNewFile();
-        Utils.writeContents(blobFile, content);
-        stage.stageSpecificVersion(file, contentBlobCode);
         stage.saveStage();
+        return conflicted;
     }
 
 
@@ -530,148 +610,271 @@ public class Repository {
 
 
 
-    public void setActivePath(String branch) {
-        activePath = Utils.join(BRANCHES, branch);
-        Utils.writeObject(CURRENTACTIVE, branch);
-    }
-
-
     public String getCurrentActive() {
-        return Utils.readObject(CURRENTACTIVE, String.class);
+        return refs().current();
     }
 
 
     public void updateHead(Commit c) {
-        Utils.writeObject(HEADPATH, c);
-        activePath = Utils.join(BRANCHES, getCurrentActive());
-        Utils.writeObject(activePath, c);
+        refs().update(getCurrentActive(), c.getHash());
+        _active = c;
     }
 
 
     public Commit activeBranch() {
-        return Utils.readObject(HEADPATH, Commit.class);
-    }
-
-    public ArrayList<String> breadthFirstTraverse(Commit c) {
-        ArrayList<String> visited = new ArrayList<>();
-        ArrayDeque<Commit> work = new ArrayDeque<>();
-        work.push(c);
-
-        while (!work.isEmpty()) {
-            Commit node = work.remove();
-            if (node != null) {
-                visited.add(node.getHash());
-                if (node.getParent2() != null) {
-                    Commit p2 = commitFromFile(node.getParent2());
-                    if (!visited.contains(p2.getHash())) {
-                        work.push(p2);
-                    }
-                }
-                if (node.getParent() != null) {
-                    Commit p1 = commitFromFile(node.getParent());
-                    if (!visited.contains(p1.getHash())) {
-                        work.push(p1);
-                    }
-                }
+        if (_active == null) {
+            _active = commitFromFile(refs().resolve(getCurrentActive()));
+        }
+        return _active;
+    }
 
+    /** Return the branches of this repository, converting the branch
+     *  files of an older version if needed. */
+    static Refs refs() {
+        if (refs == null) {
+            refs = new Refs(HEADPATH, REFS, PACKED_REFS);
+            if (!HEADPATH.exists() && BRANCHES.isDirectory()) {
+                migrateBranches();
             }
         }
-        return visited;
+        return refs;
+    }
+
+    /** Convert the branch files of an older version, each holding a
+     *  serialized commit, into branch files holding commit ids.  A commit
+     *  was stored under the hash of the same serialized form. */
+    private static void migrateBranches() {
+        List<String> names = Utils.plainFilenamesIn(BRANCHES);
+        String current = "master";
+        for (String name : names) {
+            File f = Utils.join(BRANCHES, name);
+            if (name.equals("current_active")) {
+                current = Utils.readObject(f, String.class);
+            } else if (!name.equals("head")) {
+                refs.update(name, Utils.sha1(Utils.readContents(f)));
+            }
+        }
+        refs.setCurrent(current);
+        for (String name : names) {
+            Utils.join(BRANCHES, name).delete();
+        }
+        BRANCHES.delete();
     }
 
-    public Commit splitPoint(ArrayList<String> ancestors, Commit c) {
-        ArrayList<Commit> visited = new ArrayList<>();
-        ArrayDeque<Commit> work = new ArrayDeque<>();
-        work.push(c);
+    /** Return the best common ancestor of HEAD and OTHER, found through
+     *  the commit graph. */
+    public Commit splitPoint(Commit head, Commit other) {
+        CommitGraph g = graph();
+        int base = g.mergeBase(graphPosition(head.getHash()),
+                graphPosition(other.getHash()));
+        if (base == CommitGraph.NONE) {
+            throw Utils.error("No common ancestor of %s and %s.",
+                    head.getHash(), other.getHash());
+        }
+        return commitFromFile(g.id(base));
+    }
 
-        while (!work.isEmpty()) {
-            Commit node = work.remove();
-            if (node != null) {
-                visited.add(node);
 
-                if (node.getParent() != null) {
-                    Commit p1 = commitFromFile(node.getParent());
-                    if (ancestors.contains(p1.getHash())) {
-                        return p1;
-                    }
-                    if (!visited.contains(p1)) {
-                        work.push(p1);
-                    }
-                }
-                if (node.getParent2() != null) {
-                    Commit p2 = commitFromFile(node.getParent2());
-                    if (ancestors.contains(p2.getHash())) {
-                        return p2;
-                    }
-                    if (!visited.contains(p2)) {
-                        work.push(p2);
-                    }
-                }
 
+
+    /* COMMIT UTILITIES. **/
+
+
+    /** Return the id of the commit whose id is ID or begins with ID, or
+     *  null if there is none.  Fails if several commits match. */
+    static String resolveCommit(String id) {
+        List<String> found = objects().withPrefix(id, ObjectStore.COMMIT, 2);
+        if (found.size() > 1) {
+            throw Utils.error("Commit id %s is ambiguous.", id);
+        }
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    public Commit commitFromFile(String filename) {
+        Commit c = cache().get(filename, Commit.class);
+        if (c == null) {
+            byte[] contents = objects().read(filename, ObjectStore.COMMIT);
+            if (contents == null) {
+                throw Utils.error("No commit with that id exists.");
             }
+            c = Commit.load(filename, contents);
+            cache().put(filename, c, c.footprint());
         }
         return c;
     }
 
 
+    public static void overrwriteFile(String filename, Commit c)
+            throws IOException {
+        String blobRef = c.getTracks().get(filename);
+        if (blobRef == null) {
+            throw Utils.error("File does not exist in that commit.");
+        }
+        writeBlob(filename, blobRef);
+    }
 
+    /** Replace the working file PATH with the contents of blob ID. */
+    private static void writeBlob(String filename, String blobRef)
+            throws IOException {
+        File fileInCWD = Utils.join(CWD, filename);
+        fileInCWD.getParentFile().mkdirs();
+        if (!objects().copyTo(blobRef, ObjectStore.BLOB,
+                              fileInCWD.toPath())) {
+            throw Utils.error("File does not exist in that commit.");
+        }
+        stats().record(filename, fileInCWD, blobRef);
+    }
+
+    /** Return the contents of blob BLOBID, or no bytes if BLOBID is null
+     *  or names no blob. */
+    private static byte[] getContentFromBlob(String blobID) {
+        if (blobID == null) {
+            return new byte[0];
+        }
+        byte[] blob = cache().get(blobID, byte[].class);
+        if (blob == null) {
+            blob = objects().read(blobID, ObjectStore.BLOB);
+            if (blob != null) {
+                cache().put(blobID, blob,
+                            ObjectCache.OBJECT_BYTES + blob.length);
+            }
+        }
+        if (blob != null) {
+            return blob;
+        } else {
+            return new byte[0];
+        }
+    }
 
-    /* COMMIT UTILITIES. **/
+    public String newBlob(File f) throws IOException {
+        try (InputStream in = Files.newInputStream(f.toPath())) {
+            return objects().put(ObjectStore.BLOB, in);
+        }
+    }
 
+    /** OBJECT STORE. **/
 
-    public Commit commitFromFile(String filename) {
-        File f = Utils.join(Repository.COMMITS, filename);
-        return Utils.readObject(f, Commit.class);
+    /** Return the object store of this repository, opening it if
+     *  needed. */
+    static ObjectStore objects() {
+        if (objects == null) {
+            objects = new ObjectStore(PACKS);
+        }
+        return objects;
     }
 
-    public void constructCommitTree() {
-        List<String> commits = Utils.plainFilenamesIn(COMMITS);
-        for (String filename : commits) {
-            commitTree.put(filename, commitFromFile(filename));
+    /** Return the commit graph of this repository, building it from the
+     *  stored commits if there is none yet. */
+    static CommitGraph graph() {
+        if (graph == null) {
+            boolean missing = !GRAPH.exists();
+            graph = new CommitGraph(GRAPH, GRAPH_TAIL);
+            if (missing) {
+                rebuildGraph();
+            }
         }
+        return graph;
     }
 
-    public boolean sameAsHead(String file) {
-        File f = Utils.join(CWD, file);
-        String blob = Utils.sha1(Utils.readContentsAsString(f));
-        Commit active = activeBranch();
-        if (active.getTracks().containsKey(file)) {
-            if (active.getTracks().get(file).equals(blob)) {
-                return true;
-            }
+    /** Return the pool of threads used for parallel reads, creating it if
+     *  needed.  Its size is bounded so that a large scan keeps several
+     *  reads in flight without swamping the disk. */
+    static synchronized ForkJoinPool workers() {
+        if (workers == null) {
+            workers = new ForkJoinPool(
+                Math.min(MAX_WORKERS,
+                         Runtime.getRuntime().availableProcessors()));
         }
-        return false;
+        return workers;
     }
 
+    /** Return the cache of decoded objects, creating it if needed.  It
+     *  may first be asked for by parallel reads. */
+    static synchronized ObjectCache cache() {
+        if (cache == null) {
+            cache = new ObjectCache(CACHE_CAPACITY);
+        }
+        return cache;
+    }
 
-    public static void overrwriteFile(String filename, Commit c) {
-        String blobRef = c.getTracks().get(filename);
-        File blobpath = Utils.join(BLOBS, blobRef);
-        if (!blobpath.exists()) {
-            System.out.println("File does not exist in that commit.");
-            return;
+    /** Return the index of commit messages, building it from the stored
+     *  commits if there is none yet. */
+    static MessageIndex messages() {
+        if (messages == null) {
+            boolean missing = !MESSAGES.exists();
+            messages = new MessageIndex(MESSAGES, MESSAGES_INDEX);
+            if (missing) {
+                for (String id : objects().list(ObjectStore.COMMIT)) {
+                    Commit c = Commit.load(id,
+                            objects().read(id, ObjectStore.COMMIT));
+                    messages.add(id, c.getMessage());
+                }
+            }
         }
-        File fileInCWD = Utils.join(CWD, filename);
-        Utils.writeContents(fileInCWD, Utils.readContentsAsString(blobpath));
+        return messages;
     }
 
-    private String getContentFromBlob(String blobID) {
-        File f = Utils.join(BLOBS, blobID);
+    /** Rebuild the commit graph from every stored commit. */
+    private static void rebuildGraph() {
+        ArrayList<Commit> commits = new ArrayList<>();
+        for (String id : objects().list(ObjectStore.COMMIT)) {
+            commits.add(Commit.load(id,
+                    objects().read(id, ObjectStore.COMMIT)));
+        }
+        graph.rebuild(commits);
+    }
 
+    /** Return the position of commit ID in the commit graph, rebuilding
+     *  the graph if it has fallen out of step with the stored commits. */
+    static int graphPosition(String id) {
+        int pos = graph().position(id);
+        if (pos == CommitGraph.NONE) {
+            rebuildGraph();
+            pos = graph.position(id);
+        }
+        if (pos == CommitGraph.NONE) {
+            throw Utils.error("No commit with that id exists.");
+        }
+        return pos;
+    }
 
-        if (f.exists()) {
-            return Utils.readContentsAsString(f);
-        } else {
-            return "";
+    /** Return the stat cache of the working directory. */
+    static StatCache stats() {
+        if (stats == null) {
+            stats = new StatCache(INDEX);
         }
+        return stats;
     }
 
-    public void newBlob(File f) throws IOException {
-        String blob = Utils.readContentsAsString(f);
-        String blobCode = Utils.sha1(blob);
-        File blobFile = Utils.join(BLOBS, blobCode);
-        blobFile.createNewFile();
-        Utils.writeContents(blobFile, blob);
+    /** Drop the open object store, commit graph, message index, branches
+     *  and stat cache without saving them, so that they are read afresh
+     *  when next used. */
+    static void forget() {
+        objects = null;
+        graph = null;
+        messages = null;
+        refs = null;
+        stats = null;
+    }
+
+    /** Write out pending changes to the object store, message index and
+     *  stat cache. */
+    public void close() {
+        if (objects != null) {
+            objects.flush();
+        }
+        if (messages != null) {
+            messages.flush();
+        }
+        if (graph != null) {
+            graph.flush();
+        }
+        if (stats != null) {
+            stats.save();
+        }
+        if (cache != null && Boolean.getBoolean(CACHE_STATS)) {
+            System.err.println(cache);
+        }
     }
 
 }
@@ -1,83 +1,249 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
-
+import java.util.TreeSet;
+
+/** The staging area.  On disk it is a journal: a header followed by one
+ *  record per change, each an operation byte, a path and, for additions,
+ *  the 20-byte blob id.  Saving appends only the changes made since the
+ *  stage was read, and the journal is rewritten as a snapshot of the
+ *  current entries once it holds many more records than there are
+ *  entries.  Stages written by older versions as serialized objects are
+ *  read and converted on the next save.
+ */
 public class Stage implements Serializable {
+    /** Serialization version, fixed so that saved stages stay readable
+     *  as methods are added. */
+    private static final long serialVersionUID = -9005521740260718566L;
+    /** Fields of stages written by older versions. */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("_adds", TreeMap.class),
+        new ObjectStreamField("_rms", ArrayList.class),
+    };
+
+    /** Magic number at the start of the journal. */
+    private static final int MAGIC = 0x4753544A;
+    /** Version of the journal format. */
+    private static final int VERSION = 1;
+    /** Record staging a file for addition. */
+    private static final byte ADD = 1;
+    /** Record unstaging a file staged for addition. */
+    private static final byte UNADD = 2;
+    /** Record staging a file for removal. */
+    private static final byte RM = 3;
+    /** Record unstaging a file staged for removal. */
+    private static final byte UNRM = 4;
+    /** The journal is rewritten when it would hold more than this many
+     *  records beyond twice the number of entries. */
+    private static final int COMPACT_SLACK = 64;
+
     /**Mapping of file names to blobs.*/
-    private TreeMap<String, String> _adds;
-    /**List of files to remove.*/
-    private ArrayList<String> _rms;
+    private HashMap<String, String> _adds;
+    /**Set of files to remove.*/
+    private HashSet<String> _rms;
+
+    /** File holding the journal. */
+    private transient File _file;
+    /** Records made since the stage was read or last saved. */
+    private transient ByteArrayOutputStream _pending;
+    /** Number of records in _pending. */
+    private transient int _pendingCount;
+    /** Number of records in the journal on disk. */
+    private transient int _records;
+    /** True iff the journal must be rewritten on the next save. */
+    private transient boolean _rewrite;
 
     public Stage() {
-        _adds = new TreeMap<String, String>();
-        _rms = new ArrayList<String>();
+        _adds = new HashMap<>();
+        _rms = new HashSet<>();
+        _file = Repository.STAGE;
+        _pending = new ByteArrayOutputStream();
+        _rewrite = true;
     }
 
     public Stage(File f) {
-        _adds = Utils.readObject(f, Stage.class).getAdds();
-        _rms = Utils.readObject(f, Stage.class).getRms();
+        this();
+        _file = f;
+        if (!f.isFile()) {
+            return;
+        }
+        byte[] contents = Utils.readContents(f);
+        if (contents.length >= 2 && (contents[0] & 0xff) == 0xac
+            && (contents[1] & 0xff) == 0xed) {
+            Stage old = Utils.deserialize(contents, Stage.class);
+            _adds = old._adds;
+            _rms = old._rms;
+            return;
+        }
+        replay(contents);
     }
 
-    public void stageForAddition(String filename) throws IOException {
-        File f = Utils.join(Repository.CWD, filename);
-        String blob = Utils.sha1(Utils.readContentsAsString(f));
-        _adds.put(filename, blob);
-        saveStage();
+    public void stageForAddition(String filename, String blob)
+            throws IOException {
+        stageSpecificVersion(filename, blob);
     }
 
     public void stageSpecificVersion(String filename, String versionID) {
-
-        _adds.put(filename, versionID);
+        if (!versionID.equals(_adds.put(filename, versionID))) {
+            log(ADD, filename, versionID);
+        }
     }
 
     public void removeFromAdds(String file) throws IOException {
-        if (_adds.containsKey(file)) {
-            _adds.remove(file);
-            saveStage();
-        } else {
-            return;
+        if (_adds.remove(file) != null) {
+            log(UNADD, file, null);
         }
     }
 
     public void removeFromRms(String file) throws IOException {
-        if (_rms.contains(file)) {
-            _rms.remove(file);
-
-        } else {
-            return;
+        if (_rms.remove(file)) {
+            log(UNRM, file, null);
         }
     }
 
+    /** Write the changes made since the stage was read, rewriting the
+     *  journal instead if it has grown well beyond the entries it
+     *  describes. */
     public void saveStage() throws IOException {
-        File stageFile = Repository.STAGE;
-        if (!stageFile.exists()) {
-            stageFile.createNewFile();
+        int records = _records + _pendingCount;
+        if (_rewrite
+            || records > 2 * (_adds.size() + _rms.size()) + COMPACT_SLACK) {
+            compact();
+        } else if (_pendingCount > 0) {
+            Files.write(_file.toPath(), _pending.toByteArray(),
+                        StandardOpenOption.APPEND);
+            _records = records;
         }
-        Utils.writeObject(stageFile, this);
-
+        _pending.reset();
+        _pendingCount = 0;
     }
 
     public void clearStage() throws IOException {
-        _adds = new TreeMap<>();
-        _rms = new ArrayList<>();
+        _adds = new HashMap<>();
+        _rms = new HashSet<>();
+        _rewrite = true;
         this.saveStage();
     }
 
     public void addToRms(String filename) {
-        if (!_rms.contains(filename)) {
-            _rms.add(filename);
+        if (_rms.add(filename)) {
+            log(RM, filename, null);
         }
     }
 
-    public TreeMap<String, String> getAdds() {
-        return _adds;
+    /** Return the files staged for addition, mapped to their blobs. */
+    public Map<String, String> getAdds() {
+        return Collections.unmodifiableMap(_adds);
     }
-    public ArrayList<String> getRms() {
-        return _rms;
+
+    /** Return the files staged for removal. */
+    public Set<String> getRms() {
+        return Collections.unmodifiableSet(_rms);
+    }
+
+    /** Add a record of operation OP on PATH, with blob ID for additions,
+     *  to the pending records. */
+    private void log(byte op, String path, String id) {
+        try {
+            DataOutputStream out = new DataOutputStream(_pending);
+            out.writeByte(op);
+            out.writeUTF(path);
+            if (op == ADD) {
+                out.write(PackFile.toBytes(id));
+            }
+            _pendingCount += 1;
+        } catch (IOException excp) {
+            throw new AssertionError(excp);
+        }
+    }
+
+    /** Set the entries to those described by the journal CONTENTS.  A
+     *  record cut short by an interrupted save is ignored, and causes the
+     *  journal to be rewritten on the next save. */
+    private void replay(byte[] contents) {
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(contents));
+        byte[] id = new byte[Utils.UID_LENGTH / 2];
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw Utils.error("Unrecognized stage format.");
+            }
+            while (in.available() > 0) {
+                byte op = in.readByte();
+                String path = in.readUTF();
+                switch (op) {
+                case ADD -> {
+                    in.readFully(id);
+                    _adds.put(path, PackFile.toHex(id));
+                }
+                case UNADD -> _adds.remove(path);
+                case RM -> _rms.add(path);
+                case UNRM -> _rms.remove(path);
+                default -> throw Utils.error("Corrupt stage.");
+                }
+                _records += 1;
+            }
+            _rewrite = false;
+        } catch (EOFException excp) {
+            _rewrite = true;
+        } catch (IOException excp) {
+            throw Utils.error("Cannot read stage: %s", excp.getMessage());
+        }
+    }
+
+    /** Replace the journal with one holding a record for each entry. */
+    private void compact() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        _pending.reset();
+        _pendingCount = 0;
+        for (Map.Entry<String, String> e : new TreeMap<>(_adds).entrySet()) {
+            log(ADD, e.getKey(), e.getValue());
+        }
+        for (String path : new TreeSet<>(_rms)) {
+            log(RM, path, null);
+        }
+        _pending.writeTo(out);
+        out.close();
+        File tmp = new File(_file.getPath() + ".tmp");
+        Utils.writeContents(tmp, bytes.toByteArray());
+        Files.move(tmp.toPath(), _file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        _records = _pendingCount;
+        _rewrite = false;
     }
 
+    /** Read a stage written by an older version from IN. */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        TreeMap<String, String> adds =
+            (TreeMap<String, String>) fields.get("_adds", null);
+        ArrayList<String> rms = (ArrayList<String>) fields.get("_rms", null);
+        _adds = adds == null ? new HashMap<>() : new HashMap<>(adds);
+        _rms = rms == null ? new HashSet<>() : new HashSet<>(rms);
+    }
 }
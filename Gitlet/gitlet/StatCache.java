@@ -0,0 +1,193 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/** A record of the size, modification time and file key (device and
+ *  inode on Unix) of working files, together with the id of the blob
+ *  holding their contents when they were last hashed.  A file whose
+ *  stat data still match its entry need not be read again to learn its
+ *  blob id.  An entry whose modification time is too close to the time
+ *  the cache was saved is not trusted, since the file could have changed
+ *  again within the same clock tick.
+ */
+class StatCache {
+
+    /** Magic number at the start of the file. */
+    private static final int MAGIC = 0x47535443;
+    /** Version of the file format. */
+    private static final int VERSION = 1;
+    /** Modification times within this many nanoseconds of the time the
+     *  cache was saved are not trusted. */
+    private static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** The cache stored in FILE. */
+    StatCache(File file) {
+        _file = file;
+        _entries = new ConcurrentHashMap<>();
+        load();
+    }
+
+    /** Return the id of the blob holding the contents of FILE, known in the
+     *  working directory as PATH, reading FILE only if its stat data do
+     *  not match the cache. */
+    String idOf(String path, File file) throws IOException {
+        String id = cachedId(path, file);
+        if (id == null) {
+            id = ObjectStore.idOf(file);
+            record(path, file, id);
+        }
+        return id;
+    }
+
+    /** Return the blob id recorded for PATH if the stat data of FILE still
+     *  match its entry and the entry can be trusted, and otherwise
+     *  null. */
+    String cachedId(String path, File file) throws IOException {
+        Entry e = _entries.get(path);
+        if (e == null || e.mtime + RACY_NANOS >= _written) {
+            return null;
+        }
+        BasicFileAttributes attrs = stat(file);
+        if (attrs == null || attrs.size() != e.size
+            || mtime(attrs) != e.mtime || key(attrs) != e.key) {
+            return null;
+        }
+        return e.id;
+    }
+
+    /** Record that FILE, known in the working directory as PATH, currently
+     *  holds the contents of blob ID. */
+    void record(String path, File file, String id) throws IOException {
+        BasicFileAttributes attrs = stat(file);
+        if (attrs == null) {
+            if (_entries.remove(path) != null) {
+                _dirty = true;
+            }
+            return;
+        }
+        _entries.put(path, new Entry(attrs.size(), mtime(attrs),
+                                     key(attrs), id));
+        _dirty = true;
+    }
+
+    /** Write the cache out if it has changed. */
+    void save() {
+        if (!_dirty) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            long now = TimeUnit.MILLISECONDS.toNanos(
+                System.currentTimeMillis());
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(now);
+            out.writeInt(_entries.size());
+            for (Map.Entry<String, Entry> e : _entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().mtime);
+                out.writeLong(e.getValue().key);
+                out.write(PackFile.toBytes(e.getValue().id));
+            }
+            out.close();
+            Utils.writeContents(_file, bytes.toByteArray());
+            _written = now;
+            _dirty = false;
+        } catch (IOException excp) {
+            throw Utils.error("Cannot write stat cache: %s",
+                              excp.getMessage());
+        }
+    }
+
+    /** Read the cache from its file, if there is one.  A cache that cannot
+     *  be read is discarded. */
+    private void load() {
+        if (!_file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                 new ByteArrayInputStream(Utils.readContents(_file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            _written = in.readLong();
+            int n = in.readInt();
+            byte[] id = new byte[Utils.UID_LENGTH / 2];
+            for (int i = 0; i < n; i += 1) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                long key = in.readLong();
+                in.readFully(id);
+                _entries.put(path, new Entry(size, mtime, key,
+                                             PackFile.toHex(id)));
+            }
+        } catch (IOException excp) {
+            _entries.clear();
+        }
+    }
+
+    /** Return the attributes of FILE, or null if it is not a plain
+     *  file. */
+    private static BasicFileAttributes stat(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    }
+
+    /** Return the modification time in ATTRS, in nanoseconds. */
+    private static long mtime(BasicFileAttributes attrs) {
+        return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    /** Return a number identifying the file key in ATTRS, or 0 on systems
+     *  without file keys. */
+    private static long key(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        return key == null ? 0 : key.hashCode();
+    }
+
+    /** The stat data and blob id of one file. */
+    private static class Entry {
+        /** An entry for a file of SIZE bytes last modified at MTIME, with
+         *  file key KEY, holding the contents of blob ID. */
+        Entry(long size, long mtime, long key, String id) {
+            this.size = size;
+            this.mtime = mtime;
+            this.key = key;
+            this.id = id;
+        }
+
+        /** Size of the file. */
+        private final long size;
+        /** Modification time of the file, in nanoseconds. */
+        private final long mtime;
+        /** Number identifying the file key of the file. */
+        private final long key;
+        /** Id of the blob holding the file's contents. */
+        private final String id;
+    }
+
+    /** The file holding the cache. */
+    private final File _file;
+    /** The entries of the cache, by path.  Concurrent, since working
+     *  files are hashed in parallel. */
+    private final ConcurrentHashMap<String, Entry> _entries;
+    /** Time the cache was last saved, in nanoseconds. */
+    private long _written;
+    /** True iff the entries have changed since they were read. */
+    private volatile boolean _dirty;
+}
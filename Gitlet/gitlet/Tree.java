@@ -0,0 +1,186 @@
+package gitlet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/** The contents of one directory of a snapshot.  A tree maps each name in
+ *  the directory either to the id of a blob or to the id of the tree for
+ *  a subdirectory.  Trees are stored in the object store under the hash of
+ *  their canonical encoding, one line per entry in name order, so a
+ *  subdirectory that does not change between two commits is the same
+ *  object in both, and building a new snapshot only writes the trees on
+ *  the paths that changed.
+ */
+class Tree {
+
+    /** An empty tree. */
+    Tree() {
+        _entries = new TreeMap<>();
+    }
+
+    /** Return the tree stored under ID.  The result is shared with other
+     *  readers and must not be changed. */
+    static Tree read(String id) {
+        Tree cached = Repository.cache().get(id, Tree.class);
+        if (cached != null) {
+            return cached;
+        }
+        byte[] contents = Repository.objects().read(id, ObjectStore.TREE);
+        if (contents == null) {
+            throw Utils.error("Missing tree %s.", id);
+        }
+        Tree result = new Tree();
+        String text = new String(contents, StandardCharsets.UTF_8);
+        for (String line : text.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split(" ", 3);
+            result._entries.put(parts[2],
+                                new Entry(parts[0].equals(TREE), parts[1]));
+        }
+        Repository.cache().put(id, result, result.footprint());
+        return result;
+    }
+
+    /** Return the approximate number of bytes this tree takes in
+     *  memory. */
+    private long footprint() {
+        long result = ObjectCache.OBJECT_BYTES;
+        for (Map.Entry<String, Entry> e : _entries.entrySet()) {
+            result += ObjectCache.ENTRY_BYTES + ObjectCache.OBJECT_BYTES
+                + ObjectCache.weigh(e.getKey())
+                + ObjectCache.weigh(e.getValue().id);
+        }
+        return result;
+    }
+
+    /** Store this tree, returning its id. */
+    String write() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Entry> e : _entries.entrySet()) {
+            text.append(e.getValue().tree ? TREE : BLOB).append(' ')
+                .append(e.getValue().id).append(' ')
+                .append(e.getKey()).append('\n');
+        }
+        return Repository.objects().put(ObjectStore.TREE,
+                text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Store the trees for the snapshot in which each path in FILES has
+     *  the blob it is mapped to, returning the id of the root. */
+    static String write(SortedMap<String, String> files) {
+        return update(null, files);
+    }
+
+    /** Return the id of the root of the snapshot that results from
+     *  applying CHANGES to the snapshot whose root is ID (an empty
+     *  snapshot if ID is null).  CHANGES maps paths to their new blobs, or
+     *  to null for paths to remove.  Only the trees along changed paths
+     *  are read, and a tree none of whose entries change is kept as it
+     *  is, so changes that leave a path as it was cost nothing. */
+    static String update(String id, SortedMap<String, String> changes) {
+        String result = apply(id, changes);
+        return result == null ? new Tree().write() : result;
+    }
+
+    /** As for update, but returning null rather than storing an empty
+     *  tree. */
+    private static String apply(String id,
+                                SortedMap<String, String> changes) {
+        if (changes.isEmpty() && id != null) {
+            return id;
+        }
+        Tree tree = new Tree();
+        if (id != null) {
+            tree._entries.putAll(read(id)._entries);
+        }
+        boolean changed = false;
+        TreeMap<String, TreeMap<String, String>> below = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                Entry old;
+                if (change.getValue() == null) {
+                    old = tree._entries.remove(path);
+                    changed |= old != null;
+                } else {
+                    old = tree._entries.put(path,
+                            new Entry(false, change.getValue()));
+                    changed |= old == null || old.tree
+                        || !old.id.equals(change.getValue());
+                }
+            } else {
+                below.computeIfAbsent(path.substring(0, slash),
+                                      k -> new TreeMap<>())
+                    .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+        for (Map.Entry<String, TreeMap<String, String>> dir
+                 : below.entrySet()) {
+            Entry old = tree._entries.get(dir.getKey());
+            String oldId = old != null && old.tree ? old.id : null;
+            String sub = apply(oldId, dir.getValue());
+            if (sub == null) {
+                if (oldId != null) {
+                    tree._entries.remove(dir.getKey());
+                    changed = true;
+                }
+            } else if (!sub.equals(oldId)) {
+                tree._entries.put(dir.getKey(), new Entry(true, sub));
+                changed = true;
+            }
+        }
+        if (tree._entries.isEmpty()) {
+            return null;
+        }
+        return changed || id == null ? tree.write() : id;
+    }
+
+    /** Return a map from each file path in the snapshot whose root is ID to
+     *  the id of its blob. */
+    static TreeMap<String, String> flatten(String id) {
+        TreeMap<String, String> result = new TreeMap<>();
+        flatten(id, "", result);
+        return result;
+    }
+
+    /** Add to RESULT the files in the tree ID, with PREFIX prepended to
+     *  their paths. */
+    private static void flatten(String id, String prefix,
+                                TreeMap<String, String> result) {
+        for (Map.Entry<String, Entry> e : read(id)._entries.entrySet()) {
+            String path = prefix + e.getKey();
+            if (e.getValue().tree) {
+                flatten(e.getValue().id, path + "/", result);
+            } else {
+                result.put(path, e.getValue().id);
+            }
+        }
+    }
+
+    /** One name in a tree. */
+    private static class Entry {
+        /** An entry naming object ID, a tree iff TREE. */
+        Entry(boolean tree, String id) {
+            this.tree = tree;
+            this.id = id;
+        }
+
+        /** True iff this entry names a subdirectory. */
+        private final boolean tree;
+        /** Id of the named blob or tree. */
+        private final String id;
+    }
+
+    /** Tag of entries that name blobs. */
+    private static final String BLOB = "blob";
+    /** Tag of entries that name trees. */
+    private static final String TREE = "tree";
+
+    /** The entries of this tree, by name. */
+    private final TreeMap<String, Entry> _entries;
+}
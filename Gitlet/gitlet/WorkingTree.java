@@ -0,0 +1,150 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.RecursiveTask;
+
+/** Scans of the working directory.  Files whose blob ids are not known
+ *  from the stat cache are hashed in parallel on the repository's bounded
+ *  pool of workers.  Results are delivered sorted by path regardless of
+ *  the order in which the files were hashed.
+ */
+class WorkingTree {
+
+    /** Number of files below which a scan is not split further. */
+    private static final int CHUNK = 16;
+
+    /** Return the paths of the plain files in the working directory and
+     *  its subdirectories, other than the repository itself, in sorted
+     *  order.  Paths are relative to the working directory and separated
+     *  by "/". */
+    static List<String> files() {
+        return files(".");
+    }
+
+    /** Return the paths of PATH, if it names a plain file, or of the plain
+     *  files below it, if it names a directory, in the form and order
+     *  given by files().  Returns null if PATH does not exist or lies
+     *  outside the working directory. */
+    static List<String> files(String path) {
+        Path relative = Paths.get(path).normalize();
+        if (relative.isAbsolute() || relative.startsWith("..")) {
+            return null;
+        }
+        StringBuilder name = new StringBuilder();
+        for (Path part : relative) {
+            if (name.length() > 0) {
+                name.append('/');
+            }
+            name.append(part);
+        }
+        File file = Utils.join(Repository.CWD, name.toString());
+        if (!file.exists()) {
+            return null;
+        }
+        List<String> result = new ArrayList<>();
+        walk(file, name.toString(), result);
+        Collections.sort(result);
+        return result;
+    }
+
+    /** Add to RESULT the path NAME if FILE is a plain file, or the paths of
+     *  the plain files below FILE if it is a directory other than the
+     *  repository. */
+    private static void walk(File file, String name, List<String> result) {
+        if (file.isFile()) {
+            result.add(name);
+        } else if (file.isDirectory()
+                   && !file.getName().equals(Repository.REPO.getName())) {
+            String[] children = file.list();
+            if (children == null) {
+                return;
+            }
+            for (String child : children) {
+                walk(new File(file, child),
+                     name.isEmpty() ? child : name + "/" + child, result);
+            }
+        }
+    }
+
+    /** Delete the working file at PATH, along with any directories that
+     *  this leaves empty. */
+    static void delete(String path) {
+        File file = Utils.join(Repository.CWD, path);
+        if (path.indexOf('/') < 0) {
+            Utils.restrictedDelete(file);
+            return;
+        }
+        file.delete();
+        File dir = file.getParentFile();
+        while (!dir.equals(Repository.CWD) && dir.delete()) {
+            dir = dir.getParentFile();
+        }
+    }
+
+    /** Return a map from each path in PATHS that names a plain file in the
+     *  working directory to the id of the blob holding its contents. */
+    static TreeMap<String, String> hash(Collection<String> paths)
+            throws IOException {
+        HashTask task = new HashTask(new ArrayList<>(paths));
+        try {
+            if (paths.size() <= CHUNK) {
+                return task.compute();
+            }
+            return Repository.workers().invoke(task);
+        } catch (UncheckedIOException excp) {
+            throw excp.getCause();
+        }
+    }
+
+    /** A task hashing a list of paths, splitting it in halves until the
+     *  pieces are small. */
+    private static class HashTask
+        extends RecursiveTask<TreeMap<String, String>> {
+        /** Serialization version, required of tasks though they are never
+         *  serialized. */
+        private static final long serialVersionUID = 1L;
+
+        /** A task hashing the files named in PATHS. */
+        HashTask(List<String> paths) {
+            _paths = paths;
+        }
+
+        @Override
+        protected TreeMap<String, String> compute() {
+            int n = _paths.size();
+            if (n > CHUNK) {
+                HashTask left = new HashTask(_paths.subList(0, n / 2));
+                HashTask right = new HashTask(_paths.subList(n / 2, n));
+                left.fork();
+                TreeMap<String, String> result = right.compute();
+                result.putAll(left.join());
+                return result;
+            }
+            TreeMap<String, String> result = new TreeMap<>();
+            try {
+                for (String path : _paths) {
+                    File file = Utils.join(Repository.CWD, path);
+                    if (file.isFile()) {
+                        result.put(path,
+                                   Repository.stats().idOf(path, file));
+                    }
+                }
+            } catch (IOException excp) {
+                throw new UncheckedIOException(excp);
+            }
+            return result;
+        }
+
+        /** The paths to hash. */
+        private final List<String> _paths;
+    }
+}